@@ -0,0 +1,98 @@
+package com.timgroup.statsd;
+
+import com.kenai.jffi.MemoryIO;
+import com.kenai.jffi.PageManager;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A bounded pool of send buffers of a fixed size.
+ *
+ * <p>Direct buffers are handed to the kernel as they are, whereas the JDK copies a heap buffer into
+ * a temporary direct buffer on every send. They are aligned on a page boundary when the page size
+ * and buffer addresses can be obtained from jffi, so that a packet spans as few pages as possible.
+ * Buffers are allocated when the pool is empty, and dropped when it is full on release.</p>
+ */
+final class BufferPool {
+    private static final int DEFAULT_PAGE_SIZE = 4096;
+
+    private final int bufferSize;
+    private final boolean direct;
+    private final BlockingQueue<ByteBuffer> buffers;
+
+    BufferPool(final int bufferSize, final int capacity, final boolean direct) {
+        this.bufferSize = bufferSize;
+        this.direct = direct;
+        this.buffers = new ArrayBlockingQueue<ByteBuffer>(Math.max(1, capacity));
+    }
+
+    int getBufferSize() {
+        return bufferSize;
+    }
+
+    boolean isDirect() {
+        return direct;
+    }
+
+    /**
+     * @return a cleared buffer of the pool size, allocated if the pool is empty
+     */
+    ByteBuffer borrow() {
+        final ByteBuffer buffer = buffers.poll();
+        if (buffer != null) {
+            return buffer;
+        }
+        return direct ? allocateAligned(bufferSize) : ByteBuffer.allocate(bufferSize);
+    }
+
+    /**
+     * Returns a buffer borrowed from this pool.
+     */
+    void release(final ByteBuffer buffer) {
+        buffer.clear();
+        buffers.offer(buffer);
+    }
+
+    /**
+     * Allocates a direct buffer whose first byte is on a page boundary.
+     */
+    static ByteBuffer allocateAligned(final int size) {
+        final int pageSize = pageSize();
+        final ByteBuffer block = ByteBuffer.allocateDirect(size + pageSize);
+        final long address = address(block);
+        final int offset = address == 0 ? 0 : (int) ((pageSize - (address & (pageSize - 1))) & (pageSize - 1));
+        block.position(offset);
+        block.limit(offset + size);
+        return block.slice();
+    }
+
+    private static int pageSize() {
+        if (NativeLibC.isNativeImage()) {
+            // jffi cannot load its library in native images
+            return DEFAULT_PAGE_SIZE;
+        }
+        try {
+            final long pageSize = PageManager.getInstance().pageSize();
+            if (pageSize > 0 && Long.bitCount(pageSize) == 1) {
+                return (int) pageSize;
+            }
+        } catch (final Throwable e) {
+            // the jffi native library could not be loaded
+        }
+        return DEFAULT_PAGE_SIZE;
+    }
+
+    private static long address(final ByteBuffer buffer) {
+        if (NativeLibC.isNativeImage()) {
+            return 0;
+        }
+        try {
+            return MemoryIO.getInstance().getDirectBufferAddress(buffer);
+        } catch (final Throwable e) {
+            // without the address, the buffer is left unaligned
+            return 0;
+        }
+    }
+}
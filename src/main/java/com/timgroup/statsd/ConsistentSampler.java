@@ -0,0 +1,72 @@
+package com.timgroup.statsd;
+
+/**
+ * Takes deterministic sampling decisions from a caller-provided 64-bit key, e.g. a trace ID.
+ *
+ * <p>Every decision taken with the same key and sample rate yields the same result, so all the
+ * metrics of a sampled request are kept together, and all the metrics of an unsampled request can
+ * be skipped up front, before any work is done to compute or format them. No random number is
+ * drawn: the key is mixed and compared against a precomputed threshold.</p>
+ *
+ * @see SamplingKeySource
+ */
+public final class ConsistentSampler {
+
+    /**
+     * Mixed keys are compared on their 53 upper bits, which is the precision of a double
+     * sample rate. Keeping the comparison within the positive range of a long avoids unsigned
+     * arithmetic.
+     */
+    private static final double THRESHOLD_SCALE = 0x1p53;
+
+    private final double sampleRate;
+    private final long threshold;
+
+    /**
+     * @param sampleRate
+     *     the fraction of keys to keep, between 0 and 1
+     */
+    public ConsistentSampler(final double sampleRate) {
+        this.sampleRate = sampleRate;
+        this.threshold = threshold(sampleRate);
+    }
+
+    public double getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * @param key
+     *     the key identifying the unit of work, e.g. a trace ID
+     * @return true if the metrics tied to this key should be kept
+     */
+    public boolean isSampled(final long key) {
+        return (mix(key) >>> 11) < threshold;
+    }
+
+    /**
+     * @param key
+     *     the key identifying the unit of work, e.g. a trace ID
+     * @param sampleRate
+     *     the fraction of keys to keep, between 0 and 1
+     * @return true if the metrics tied to this key should be kept
+     */
+    public static boolean isSampled(final long key, final double sampleRate) {
+        return (mix(key) >>> 11) < threshold(sampleRate);
+    }
+
+    private static long threshold(final double sampleRate) {
+        // NaN and negative rates map to 0, keeping nothing; rates >= 1 keep everything
+        return (long) (sampleRate * THRESHOLD_SCALE);
+    }
+
+    /**
+     * Finalizer of the SplitMix64 generator, spreading sequential or poorly distributed
+     * keys evenly over the 64-bit range.
+     */
+    static long mix(long key) {
+        key = (key ^ (key >>> 30)) * 0xbf58476d1ce4e5b9L;
+        key = (key ^ (key >>> 27)) * 0x94d049bb133111ebL;
+        return key ^ (key >>> 31);
+    }
+}
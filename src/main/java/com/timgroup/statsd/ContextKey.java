@@ -0,0 +1,50 @@
+package com.timgroup.statsd;
+
+import java.util.Arrays;
+
+/**
+ * Identifies a metric context, i.e. an aspect and its tags, without rendering it as a string.
+ *
+ * <p>Keys built on the submission path wrap the caller's tag array, which may be reused once the
+ * call returns: use {@link #copy()} before storing a key.</p>
+ */
+final class ContextKey {
+    private final String aspect;
+    private final String[] tags;
+    private final int hash;
+
+    ContextKey(final String aspect, final String[] tags) {
+        this.aspect = aspect;
+        this.tags = tags;
+        this.hash = 31 * aspect.hashCode() + Arrays.hashCode(tags);
+    }
+
+    ContextKey copy() {
+        return tags == null ? this : new ContextKey(aspect, tags.clone());
+    }
+
+    String getAspect() {
+        return aspect;
+    }
+
+    String[] getTags() {
+        return tags;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ContextKey)) {
+            return false;
+        }
+        final ContextKey other = (ContextKey) o;
+        return hash == other.hash && aspect.equals(other.aspect) && Arrays.equals(tags, other.tags);
+    }
+}
@@ -0,0 +1,223 @@
+package com.timgroup.statsd;
+
+import jnr.constants.platform.Errno;
+import jnr.unixsocket.UnixDatagramChannel;
+import jnr.unixsocket.UnixSocketOptions;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Sends each packet as a datagram through a channel, over UDP or a unix socket.
+ */
+public final class DatagramTransport implements Transport {
+    /**
+     * Errors after which a unix socket channel is opened again, such as those following a restart of
+     * the agent, which creates its socket file again.
+     */
+    private static final Errno[] TERMINAL_ERRORS = {
+        Errno.ECONNREFUSED,
+        Errno.ENOENT,
+        Errno.EBADF,
+        Errno.ENOTCONN,
+        Errno.ENOTSOCK,
+    };
+
+    private DatagramChannel channel;
+    private boolean connectOnWrite;
+    private SocketAddress connectedAddress;
+    private boolean reopen;
+    private int reopenTimeout;
+    private int reopenBufferSize;
+    private IOException lastFailure;
+    private int lastError;
+
+    /**
+     * @param channel
+     *     the channel to send through, closed with the transport
+     */
+    public DatagramTransport(final DatagramChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * @return a transport sending over UDP
+     * @throws IOException
+     *     if the channel could not be opened
+     */
+    public static DatagramTransport udp() throws IOException {
+        return new DatagramTransport(DatagramChannel.open());
+    }
+
+    /**
+     * @param timeout
+     *     the timeout in milliseconds for blocking sends, 0 to block until the packet is sent
+     * @param bufferSize
+     *     the socket buffer size in bytes, 0 for the system default
+     * @return a transport sending through a unix datagram socket, whose channel the sender of the client opens
+     *     again after errors such as those following a restart of the agent
+     * @throws IOException
+     *     if the channel could not be opened
+     */
+    public static DatagramTransport unix(final int timeout, final int bufferSize) throws IOException {
+        final DatagramTransport transport = new DatagramTransport(openUnix(timeout, bufferSize));
+        transport.reopenOnFailure(timeout, bufferSize);
+        return transport;
+    }
+
+    private static DatagramChannel openUnix(final int timeout, final int bufferSize) throws IOException {
+        if (NativeLibC.isNativeImage()) {
+            throw new IOException("Unix datagram sockets are not available in native images, use UDP or the unix stream mode");
+        }
+        final DatagramChannel channel = UnixDatagramChannel.open();
+        // Set send timeout, to handle the case where the transmission buffer is full
+        // If no timeout is set, the send becomes blocking
+        if (timeout > 0) {
+            channel.setOption(UnixSocketOptions.SO_SNDTIMEO, timeout);
+        }
+        if (bufferSize > 0) {
+            channel.setOption(UnixSocketOptions.SO_SNDBUF, bufferSize);
+        }
+        return channel;
+    }
+
+    DatagramChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Lets the sender open a new unix socket channel when the channel fails for good.
+     *
+     * @param timeout
+     *     the send timeout of the new channel
+     * @param bufferSize
+     *     the socket buffer size of the new channel
+     */
+    void reopenOnFailure(final int timeout, final int bufferSize) {
+        reopen = true;
+        reopenTimeout = timeout;
+        reopenBufferSize = bufferSize;
+    }
+
+    /**
+     * @return true if the channel should be opened again after the error, a closed channel or an
+     *     error number of the last write among the terminal errors
+     */
+    boolean isReopenable(final IOException e) {
+        if (!reopen) {
+            return false;
+        }
+        if (e instanceof ClosedChannelException) {
+            return true;
+        }
+        if (e != lastFailure) {
+            return false;
+        }
+        for (final Errno error : TERMINAL_ERRORS) {
+            if (error.defined() && error.intValue() == lastError) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Closes the channel and opens a new one, with the same options.
+     *
+     * @throws IOException
+     *     if the new channel could not be opened
+     */
+    void reopen() throws IOException {
+        close();
+        connectedAddress = null;
+        channel = openUnix(reopenTimeout, reopenBufferSize);
+    }
+
+    /**
+     * Connects the channel to the address of each write, reconnecting it when the address changes,
+     * which spares the lookup of the route on every send.
+     */
+    void connectOnWrite() {
+        connectOnWrite = true;
+    }
+
+    @Override
+    public void write(final ByteBuffer packet, final SocketAddress address) throws IOException {
+        if (connectOnWrite && !address.equals(connectedAddress)) {
+            connect(address);
+        }
+        final int sizeOfBuffer = packet.remaining();
+        final int sentBytes;
+        try {
+            sentBytes = channel.isConnected() ? channel.write(packet) : channel.send(packet, address);
+        } catch (final IOException e) {
+            if (reopen) {
+                // jnr reports the error of the failed call as its message only
+                lastFailure = e;
+                lastError = NativeLibC.errno();
+            }
+            throw e;
+        }
+        if (sizeOfBuffer != sentBytes) {
+            throw new IOException(
+                    String.format(
+                            "Could not send entirely stat %s to %s. Only sent %d bytes out of %d bytes",
+                            packet.toString(),
+                            address.toString(),
+                            sentBytes,
+                            sizeOfBuffer));
+        }
+    }
+
+    @Override
+    public void write(final ByteBuffer[] packets, final int offset, final int length, final SocketAddress address) throws IOException {
+        for (int i = offset; i < offset + length; i++) {
+            write(packets[i], address);
+        }
+    }
+
+    private void connect(final SocketAddress address) throws IOException {
+        if (channel.isConnected()) {
+            channel.disconnect();
+        }
+        // jnr's unix datagram channel only records the address on connect(), without connecting
+        // the underlying socket, so unix sockets keep sending to the address given on each send
+        if (address instanceof InetSocketAddress) {
+            channel.connect(address);
+        }
+        connectedAddress = address;
+    }
+
+    @Override
+    public void flush() {
+        // every packet is sent as it is written
+    }
+
+    @Override
+    public boolean hasPending() {
+        return false;
+    }
+
+    @Override
+    public int getMaxPacketSizeBytes() {
+        return 0;
+    }
+
+    @Override
+    public boolean supportsBatching() {
+        return false;
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (final IOException e) {
+            // nothing more can be sent either way
+        }
+    }
+}
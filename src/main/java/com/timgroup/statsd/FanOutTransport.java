@@ -0,0 +1,371 @@
+package com.timgroup.statsd;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Sends each packet to several StatsD servers, for instance to a node-local agent over a unix
+ * socket and to a sidecar over UDP while migrating from one to the other.
+ *
+ * <p>Each packet is formatted once by the client and copied once; the copy is then queued for
+ * every endpoint. Each endpoint has its own queue and its own thread writing to its transport, so
+ * that a slow or unreachable endpoint does not hold back the others: once its queue is full, the
+ * packets for that endpoint are dropped, which fails the write.</p>
+ *
+ * <p>A flush waits for the queues of all the endpoints to be sent, up to a deadline, and fails if
+ * they were not, or if writes to any endpoint failed since the previous flush: the client counts
+ * these failures, and its circuit breaker sees them, as for any other transport.</p>
+ *
+ * <pre>
+ * Transport fanOut = new FanOutTransport(4096, handler)
+ *     .addEndpoint(DatagramTransport.unix(100, 0),
+ *             NonBlockingStatsDClient.staticAddressResolution("/var/run/datadog/dsd.socket", 0))
+ *     .addEndpoint(DatagramTransport.udp(),
+ *             NonBlockingStatsDClient.staticAddressResolution("sidecar", 8125));
+ * </pre>
+ *
+ * <p>The address looked up by the client is not used: each endpoint sends to its own address.</p>
+ */
+public final class FanOutTransport implements Transport {
+    private static final long PENDING_FLUSH_INTERVAL_MS = 5;
+    private static final long CLOSE_TIMEOUT_MS = 5000;
+    static final long FLUSH_TIMEOUT_MS = 100;
+
+    /**
+     * Wakes up the thread of an endpoint when closing. Interrupting it instead would close the
+     * channel it may be writing to.
+     */
+    private static final byte[] WAKEUP = new byte[0];
+
+    private final int queueSize;
+    private final StatsDClientErrorHandler handler;
+    private final List<Endpoint> endpoints = new ArrayList<Endpoint>();
+
+    /**
+     * Notified whenever the queue of an endpoint has been sent.
+     */
+    private final Object drained = new Object();
+
+    /**
+     * @param queueSize
+     *     the number of packets queued for each endpoint, beyond which the packets for that endpoint
+     *     are dropped
+     * @param handler
+     *     the handler of the errors of the endpoints once closed, those before being reported to the
+     *     client by the writes and flushes that fail ; may be null to ignore them
+     */
+    public FanOutTransport(final int queueSize, final StatsDClientErrorHandler handler) {
+        this.queueSize = queueSize;
+        this.handler = handler != null ? handler : new StatsDClientErrorHandler() {
+            @Override public void handle(final Exception exception) { /* No-op */ }
+        };
+    }
+
+    /**
+     * Adds an endpoint, and starts its thread. Endpoints must be added before the transport is
+     * given to the client.
+     *
+     * @param transport
+     *     the transport to the endpoint, closed with this transport
+     * @param addressLookup
+     *     yields the address of the endpoint, called for every packet
+     * @return this transport
+     */
+    public FanOutTransport addEndpoint(final Transport transport, final Callable<SocketAddress> addressLookup) {
+        final Endpoint endpoint = new Endpoint(endpoints.size(), transport, addressLookup);
+        endpoints.add(endpoint);
+        endpoint.thread.start();
+        return this;
+    }
+
+    /**
+     * Queues a copy of the packet for every endpoint.
+     *
+     * @throws IOException
+     *     if the queue of any endpoint is full, the packet being queued for the others all the same
+     */
+    @Override
+    public void write(final ByteBuffer packet, final SocketAddress address) throws IOException {
+        final byte[] data = new byte[packet.remaining()];
+        packet.get(data);
+        IOException dropped = null;
+        for (final Endpoint endpoint : endpoints) {
+            if (!endpoint.offer(data) && dropped == null) {
+                dropped = new IOException("Dropped a packet of " + data.length + " bytes to endpoint "
+                        + endpoint.index + ": queue full");
+            }
+        }
+        if (dropped != null) {
+            throw dropped;
+        }
+    }
+
+    @Override
+    public void write(final ByteBuffer[] packets, final int offset, final int length, final SocketAddress address) throws IOException {
+        IOException dropped = null;
+        for (int i = offset; i < offset + length; i++) {
+            try {
+                write(packets[i], address);
+            } catch (final IOException e) {
+                if (dropped == null) {
+                    dropped = e;
+                }
+            }
+        }
+        if (dropped != null) {
+            throw dropped;
+        }
+    }
+
+    /**
+     * Waits for the packets queued for every endpoint to be sent, {@link #FLUSH_TIMEOUT_MS} at most,
+     * each endpoint flushing its transport whenever its queue runs empty.
+     *
+     * @throws IOException
+     *     if packets are still queued for an endpoint, or writes to an endpoint failed since the
+     *     previous flush
+     */
+    @Override
+    public void flush() throws IOException {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(FLUSH_TIMEOUT_MS);
+        synchronized (drained) {
+            while (hasPending()) {
+                final long remainingMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remainingMs <= 0) {
+                    break;
+                }
+                try {
+                    drained.wait(remainingMs);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while flushing the endpoints");
+                }
+            }
+        }
+        IOException failure = null;
+        for (final Endpoint endpoint : endpoints) {
+            final IOException endpointFailure = endpoint.takeFailure();
+            if (endpointFailure != null) {
+                if (failure == null) {
+                    failure = endpointFailure;
+                } else {
+                    failure.addSuppressed(endpointFailure);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * @return true if packets are queued for any endpoint, or being written to it
+     */
+    @Override
+    public boolean hasPending() {
+        for (final Endpoint endpoint : endpoints) {
+            if (endpoint.unsent.get() > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the smallest limit of the transports to the endpoints
+     */
+    @Override
+    public int getMaxPacketSizeBytes() {
+        int maxPacketSizeBytes = 0;
+        for (final Endpoint endpoint : endpoints) {
+            final int endpointMax = endpoint.transport.getMaxPacketSizeBytes();
+            if (endpointMax > 0 && (maxPacketSizeBytes == 0 || endpointMax < maxPacketSizeBytes)) {
+                maxPacketSizeBytes = endpointMax;
+            }
+        }
+        return maxPacketSizeBytes;
+    }
+
+    @Override
+    public boolean supportsBatching() {
+        return false;
+    }
+
+    /**
+     * Sends the packets queued for each endpoint, waiting for a few seconds at most, then closes
+     * the transports to the endpoints. The packets still queued for an endpoint that did not
+     * finish in time are dropped and reported to the error handler, and its thread is interrupted,
+     * which closes its transport even while blocked writing to it.
+     */
+    @Override
+    public void close() {
+        for (final Endpoint endpoint : endpoints) {
+            endpoint.closed = true;
+            endpoint.queue.offer(WAKEUP);
+        }
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CLOSE_TIMEOUT_MS);
+        boolean interrupted = false;
+        for (final Endpoint endpoint : endpoints) {
+            if (!interrupted) {
+                try {
+                    endpoint.thread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+                } catch (final InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (endpoint.thread.isAlive()) {
+                endpoint.abandon();
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private final class Endpoint implements Runnable {
+        final int index;
+        final Transport transport;
+        final Callable<SocketAddress> addressLookup;
+        final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<byte[]>(queueSize);
+        final Thread thread = NonBlockingStatsDClient.THREAD_FACTORY.newThread(this);
+
+        /**
+         * The packets queued, or being written.
+         */
+        final AtomicInteger unsent = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+        final AtomicReference<Exception> firstFailure = new AtomicReference<Exception>();
+
+        volatile boolean closed;
+
+        Endpoint(final int index, final Transport transport, final Callable<SocketAddress> addressLookup) {
+            this.index = index;
+            this.transport = transport;
+            this.addressLookup = addressLookup;
+        }
+
+        /**
+         * @return false if the queue is full, the packet being dropped
+         */
+        boolean offer(final byte[] data) {
+            unsent.incrementAndGet();
+            if (!queue.offer(data)) {
+                sent();
+                return false;
+            }
+            return true;
+        }
+
+        private void sent() {
+            if (unsent.decrementAndGet() == 0) {
+                synchronized (drained) {
+                    drained.notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Keeps the failure for the next flush, or reports it once closed.
+         */
+        private void failed(final Exception e) {
+            if (closed) {
+                handler.handle(e);
+                return;
+            }
+            firstFailure.compareAndSet(null, e);
+            failures.incrementAndGet();
+        }
+
+        /**
+         * @return the failure to report for the writes that failed since the previous call, and
+         *     the packets still queued, null if none
+         */
+        IOException takeFailure() {
+            final int failed = failures.getAndSet(0);
+            final Exception first = firstFailure.getAndSet(null);
+            final int queued = unsent.get();
+            if (failed > 0) {
+                return new IOException(failed + " failed writes to endpoint " + index, first);
+            }
+            if (queued > 0) {
+                return new IOException("Timed out after " + FLUSH_TIMEOUT_MS + " ms with " + queued
+                        + " packets queued for endpoint " + index);
+            }
+            return null;
+        }
+
+        /**
+         * Drops the packets queued, and interrupts the thread to stop it.
+         */
+        void abandon() {
+            final List<byte[]> abandoned = new ArrayList<byte[]>();
+            queue.drainTo(abandoned);
+            int packets = 0;
+            for (final byte[] data : abandoned) {
+                if (data != WAKEUP) {
+                    packets++;
+                }
+            }
+            unsent.addAndGet(-packets);
+            thread.interrupt();
+            handler.handle(new IOException("Abandoned " + packets + " packets to endpoint " + index
+                    + ": close timed out"));
+        }
+
+        @Override
+        public void run() {
+            try {
+                sendLoop();
+            } finally {
+                try {
+                    transport.flush();
+                } catch (final Exception e) {
+                    handler.handle(e);
+                }
+                transport.close();
+            }
+        }
+
+        private void sendLoop() {
+            while (!(queue.isEmpty() && closed)) {
+                try {
+                    final boolean pending = transport.hasPending();
+                    final byte[] data = closed
+                            ? queue.poll()
+                            : queue.poll(pending ? PENDING_FLUSH_INTERVAL_MS : 1000, TimeUnit.MILLISECONDS);
+                    if (data == null || data == WAKEUP) {
+                        if (pending) {
+                            transport.flush();
+                        }
+                        continue;
+                    }
+                    try {
+                        transport.write(ByteBuffer.wrap(data), addressLookup.call());
+                        if (queue.isEmpty()) {
+                            transport.flush();
+                        }
+                    } catch (final Exception e) {
+                        // kept before the packet counts as sent, for the flush waiting for it
+                        failed(e);
+                    } finally {
+                        sent();
+                    }
+                } catch (final InterruptedException e) {
+                    return;
+                } catch (final Exception e) {
+                    failed(e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.timgroup.statsd;
+
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.FutureTask;
+
+/**
+ * The flushes of a client waiting for the sender to write the messages queued before them.
+ *
+ * <p>Each flush queues the marker of its barrier like any message. Markers are empty strings,
+ * which no metric formats to, told apart by identity: the sender looks the barrier up when it takes
+ * an empty string from its queue, once the messages before it are written.</p>
+ */
+final class FlushBarriers {
+    private static final Runnable NO_OP = new Runnable() {
+        @Override public void run() { /* No-op */ }
+    };
+
+    private final Queue<Barrier> pending = new ConcurrentLinkedQueue<Barrier>();
+
+    static final class Barrier extends FutureTask<Void> {
+        final String marker = new String();
+
+        Barrier() {
+            super(NO_OP, null);
+        }
+
+        void complete() {
+            set(null);
+        }
+
+        void fail(final Exception e) {
+            setException(e);
+        }
+    }
+
+    /**
+     * @return true if the message is the marker of a barrier, rather than a metric
+     */
+    static boolean isMarker(final String message) {
+        return message.isEmpty();
+    }
+
+    /**
+     * @return a barrier to queue the marker of
+     */
+    Barrier register() {
+        final Barrier barrier = new Barrier();
+        pending.add(barrier);
+        return barrier;
+    }
+
+    void complete(final String marker) {
+        final Barrier barrier = remove(marker);
+        if (barrier != null) {
+            barrier.complete();
+        }
+    }
+
+    void fail(final String marker, final Exception e) {
+        final Barrier barrier = remove(marker);
+        if (barrier != null) {
+            barrier.fail(e);
+        }
+    }
+
+    /**
+     * Completes all the barriers pending, once the sender has stopped after sending the messages
+     * before them.
+     */
+    void completeAll() {
+        Barrier barrier;
+        while ((barrier = pending.poll()) != null) {
+            barrier.complete();
+        }
+    }
+
+    /**
+     * Fails all the barriers pending, once the sender has stopped without sending all the messages
+     * before them.
+     */
+    void failAll(final Exception e) {
+        Barrier barrier;
+        while ((barrier = pending.poll()) != null) {
+            barrier.fail(e);
+        }
+    }
+
+    private Barrier remove(final String marker) {
+        final Iterator<Barrier> iterator = pending.iterator();
+        while (iterator.hasNext()) {
+            final Barrier barrier = iterator.next();
+            if (barrier.marker == marker) {
+                iterator.remove();
+                return barrier;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,82 @@
+package com.timgroup.statsd;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Unix domain stream sockets of the JDK, available from Java 16, used in place of jnr-unixsocket
+ * when the JDK provides them.
+ *
+ * <p>The client is built for Java 7, so the classes of Java 16 are looked up once, on first use;
+ * channels are then plain {@link SocketChannel}s, written to without reflection. The JDK has no
+ * unix datagram sockets, which are still sent through jnr-unixsocket.</p>
+ */
+final class JdkUnixSockets {
+
+    private static final class Holder {
+        static final ProtocolFamily UNIX;
+        static final Method ADDRESS_OF;
+        static final Method OPEN;
+
+        static {
+            ProtocolFamily unix = null;
+            Method addressOf = null;
+            Method open = null;
+            try {
+                unix = StandardProtocolFamily.valueOf("UNIX");
+                addressOf = Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class);
+                open = SocketChannel.class.getMethod("open", ProtocolFamily.class);
+            } catch (final Exception e) {
+                // before Java 16
+                unix = null;
+            }
+            UNIX = unix;
+            ADDRESS_OF = addressOf;
+            OPEN = open;
+        }
+    }
+
+    private JdkUnixSockets() {}
+
+    /**
+     * @return true if the JDK provides unix domain socket channels
+     */
+    static boolean isAvailable() {
+        return Holder.UNIX != null;
+    }
+
+    /**
+     * @param path
+     *     the path of the socket file
+     * @return a channel connected to the socket, in blocking mode
+     * @throws IOException
+     *     if the channel could not be opened or connected
+     */
+    static SocketChannel openStream(final String path) throws IOException {
+        final SocketChannel channel;
+        final SocketAddress address;
+        try {
+            channel = (SocketChannel) Holder.OPEN.invoke(null, Holder.UNIX);
+            address = (SocketAddress) Holder.ADDRESS_OF.invoke(null, path);
+        } catch (final InvocationTargetException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Could not open a unix socket to " + path, e.getCause());
+        } catch (final IllegalAccessException e) {
+            throw new IOException("Could not open a unix socket to " + path, e);
+        }
+        try {
+            channel.connect(address);
+        } catch (final IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+}
@@ -0,0 +1,14 @@
+package com.timgroup.statsd;
+
+/**
+ * Supplies the current value of a gauge polled by the client.
+ *
+ * @see StatsDClient#registerGauge(String, LongGaugeSupplier, String...)
+ */
+public interface LongGaugeSupplier {
+
+    /**
+     * @return the current reading of the gauge
+     */
+    long getAsLong();
+}
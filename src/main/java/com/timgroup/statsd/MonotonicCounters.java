@@ -0,0 +1,124 @@
+package com.timgroup.statsd;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Turns cumulative totals into counter deltas, keeping the last total observed for each context.
+ *
+ * <p>The first total observed for a context only sets the baseline. A total lower than the previous
+ * one is taken as a reset of the source, and counts from zero.</p>
+ *
+ * <p>At most {@code maxContexts} contexts are tracked, so that a high cardinality of tags cannot
+ * grow the baselines without bound: the totals of further contexts are ignored. When aggregated,
+ * contexts not updated for {@link #MAX_IDLE_FLUSHES} flushes are evicted, their next total setting a
+ * new baseline.</p>
+ */
+final class MonotonicCounters {
+    static final int MAX_IDLE_FLUSHES = 3;
+
+    private final boolean aggregated;
+    private final int maxContexts;
+    private final ConcurrentMap<ContextKey, Cell> cells = new ConcurrentHashMap<ContextKey, Cell>();
+
+    /**
+     * @param aggregated
+     *     true to accumulate the deltas until {@link #flush}, false to return them from {@link #update}
+     * @param maxContexts
+     *     the maximum number of contexts tracked
+     */
+    MonotonicCounters(final boolean aggregated, final int maxContexts) {
+        this.aggregated = aggregated;
+        this.maxContexts = maxContexts;
+    }
+
+    /**
+     * @return the delta to send right away, 0 if nothing needs to be sent
+     */
+    long update(final String aspect, final long cumulativeValue, final String[] tags) {
+        final ContextKey key = new ContextKey(aspect, tags);
+        while (true) {
+            Cell cell = cells.get(key);
+            if (cell == null) {
+                if (cells.size() >= maxContexts) {
+                    return 0;
+                }
+                final Cell created = new Cell(cumulativeValue);
+                cell = cells.putIfAbsent(key.copy(), created);
+                if (cell == null) {
+                    return 0;
+                }
+            }
+            final long delta = cell.update(cumulativeValue);
+            if (delta != Cell.EVICTED) {
+                return delta;
+            }
+            // evicted meanwhile, start over from a new baseline
+        }
+    }
+
+    /**
+     * Sends the deltas accumulated since the last flush.
+     */
+    void flush(final StatsDClient client) {
+        for (final Map.Entry<ContextKey, Cell> entry : cells.entrySet()) {
+            final long delta = entry.getValue().drain();
+            if (delta > 0) {
+                client.count(entry.getKey().getAspect(), delta, entry.getKey().getTags());
+            } else if (delta == Cell.EVICTED) {
+                cells.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * @return the number of contexts tracked
+     */
+    int size() {
+        return cells.size();
+    }
+
+    private final class Cell {
+        static final long EVICTED = -1;
+
+        private long last;
+        private long pending;
+        private int idleFlushes;
+        private boolean evicted;
+
+        Cell(final long last) {
+            this.last = last;
+        }
+
+        /**
+         * @return the delta, or {@link #EVICTED} if the cell was evicted
+         */
+        synchronized long update(final long cumulativeValue) {
+            if (evicted) {
+                return EVICTED;
+            }
+            idleFlushes = 0;
+            final long delta = cumulativeValue >= last ? cumulativeValue - last : cumulativeValue;
+            last = cumulativeValue;
+            if (!aggregated) {
+                return delta;
+            }
+            pending += delta;
+            return 0;
+        }
+
+        /**
+         * @return the deltas accumulated, or {@link #EVICTED} if the cell was idle for too long
+         */
+        synchronized long drain() {
+            final long result = pending;
+            pending = 0;
+            if (result == 0 && ++idleFlushes >= MAX_IDLE_FLUSHES) {
+                evicted = true;
+                return EVICTED;
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.timgroup.statsd;
+
+import jnr.ffi.LastError;
+import jnr.ffi.LibraryLoader;
+import jnr.ffi.Platform;
+import jnr.ffi.Pointer;
+import jnr.ffi.Runtime;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * The socket functions of the C library used by the native transports, loaded on first use.
+ *
+ * <p>Constants and structure layouts are those of Linux, the only platform those transports are
+ * enabled on.</p>
+ */
+final class NativeLibC {
+    static final int AF_UNIX = 1;
+    static final int AF_INET = 2;
+    static final int AF_INET6 = 10;
+    static final int SOCK_DGRAM = 2;
+    static final int SOL_SOCKET = 1;
+    static final int SO_SNDBUF = 7;
+    static final int IPPROTO_IP = 0;
+    static final int IP_TOS = 1;
+    static final int IPPROTO_IPV6 = 41;
+    static final int IPV6_TCLASS = 67;
+    static final int SOL_UDP = 17;
+    static final int UDP_SEGMENT = 103;
+    static final int MSG_DONTWAIT = 0x40;
+    static final int POLLOUT = 0x4;
+    static final int EINTR = 4;
+    static final int EIO = 5;
+    static final int EAGAIN = 11;
+    static final int EINVAL = 22;
+
+    public interface LibC {
+        int socket(int domain, int type, int protocol);
+        int connect(int fd, ByteBuffer address, int addressLength);
+        int getsockopt(int fd, int level, int option, ByteBuffer value, ByteBuffer valueLength);
+        int setsockopt(int fd, int level, int option, ByteBuffer value, int valueLength);
+        int send(int fd, ByteBuffer buffer, long length, int flags);
+        int sendmmsg(int fd, Pointer messages, int count, int flags);
+        int poll(ByteBuffer fds, long count, int timeout);
+        int close(int fd);
+        String strerror(int error);
+    }
+
+    private static final class Holder {
+        static final LibC LIBC = LibraryLoader.create(LibC.class).load("c");
+        static final Runtime RUNTIME = Runtime.getRuntime(LIBC);
+    }
+
+    private NativeLibC() {}
+
+    /**
+     * @return true on Linux on x86-64 and aarch64, whose constants and structure layouts are those
+     *     defined here, outside of native images, where jnr cannot generate its bindings
+     */
+    static boolean isSupported() {
+        if (isNativeImage()) {
+            return false;
+        }
+        final Platform platform = Platform.getNativePlatform();
+        return platform.getOS() == Platform.OS.LINUX
+                && (platform.getCPU() == Platform.CPU.X86_64 || platform.getCPU() == Platform.CPU.AARCH64);
+    }
+
+    /**
+     * @return true when running as a GraalVM native image
+     */
+    static boolean isNativeImage() {
+        return System.getProperty("org.graalvm.nativeimage.imagecode") != null;
+    }
+
+    /**
+     * @throws Throwable if the library cannot be loaded
+     */
+    static LibC libc() {
+        return Holder.LIBC;
+    }
+
+    static Runtime runtime() {
+        return Holder.RUNTIME;
+    }
+
+    /**
+     * @return the error of the last native call of the current thread
+     */
+    static int errno() {
+        return LastError.getLastError(Holder.RUNTIME);
+    }
+
+    /**
+     * Sets an integer socket option.
+     *
+     * @return true if the option was set
+     */
+    static boolean setIntOption(final int fd, final int level, final int option, final int value) {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(4).order(ByteOrder.nativeOrder());
+        buffer.putInt(0, value);
+        return Holder.LIBC.setsockopt(fd, level, option, buffer, 4) == 0;
+    }
+
+    static String strerror(final int error) {
+        return Holder.LIBC.strerror(error);
+    }
+}
@@ -1,5 +1,8 @@
 package com.timgroup.statsd;
 
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
 /**
  * A No-Op StatsDClient, which can be substituted in when metrics are not
  * required.
@@ -10,6 +13,12 @@ package com.timgroup.statsd;
 public final class NoOpStatsDClient implements StatsDClient {
 	@Override public void stop() { }
     @Override public void close() { }
+    @Override public boolean flush(long timeout, TimeUnit unit) { return true; }
+    @Override public Future<Void> flushAsync() {
+        final FlushBarriers.Barrier done = new FlushBarriers.Barrier();
+        done.complete();
+        return done;
+    }
     @Override public void count(String aspect, long delta, String... tags) { }
     @Override public void count(String aspect, long delta, double sampleRate, String... tags) { }
     @Override public void count(String aspect, double delta, String... tags) { }
@@ -54,4 +63,11 @@ public final class NoOpStatsDClient implements StatsDClient {
     @Override public void recordServiceCheckRun(ServiceCheck sc) { }
     @Override public void serviceCheck(ServiceCheck sc) { }
     @Override public void recordSetValue(String aspect, String value, String... tags) { }
+    @Override public void monotonicCount(String aspect, long cumulativeValue, String... tags) { }
+    @Override public void registerGauge(String aspect, LongGaugeSupplier supplier, String... tags) { }
+    @Override public void registerGauge(String aspect, LongGaugeSupplier supplier, long intervalMs, String... tags) { }
+    @Override public void registerGauge(String aspect, DoubleGaugeSupplier supplier, String... tags) { }
+    @Override public void registerGauge(String aspect, DoubleGaugeSupplier supplier, long intervalMs, String... tags) { }
+    @Override public void unregisterGauge(String aspect, String... tags) { }
+    @Override public TimerSummary timerSummary(String aspect, String... tags) { return TimerSummary.NO_OP; }
 }
@@ -1,9 +1,9 @@
 package com.timgroup.statsd;
 
-import jnr.unixsocket.UnixDatagramChannel;
 import jnr.unixsocket.UnixSocketAddress;
-import jnr.unixsocket.UnixSocketOptions;
 
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
@@ -14,13 +14,24 @@ import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
 import java.text.NumberFormat;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Locale;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
@@ -63,75 +74,136 @@ public class NonBlockingStatsDClient implements StatsDClient {
      * See https://github.com/DataDog/java-dogstatsd-client/pull/17 for discussion.
      */
     private static final int DEFAULT_MAX_PACKET_SIZE_BYTES = 1400;
+    private static final int DEFAULT_UDS_MAX_PACKET_SIZE_BYTES = 8192;
+    private static final int AUTO_MAX_PACKET_SIZE_BYTES = 0;
     private static final int DEFAULT_DOGSTATSD_PORT = 8125;
     private static final int SOCKET_TIMEOUT_MS = 100;
     private static final int SOCKET_BUFFER_BYTES = -1;
+    private static final int DEFAULT_RATE_LIMITED_CONTEXTS = 10000;
+    private static final int DEFAULT_MONOTONIC_COUNT_CONTEXTS = 10000;
+    private static final int DEFAULT_TIMER_SUMMARY_CONTEXTS = 1000;
+    private static final long DEFAULT_GAUGE_POLLING_INTERVAL_MS = 10000;
+    private static final long DEFAULT_AGGREGATION_FLUSH_INTERVAL_MS = 10000;
+    private static final long DEFAULT_ADDRESS_REFRESH_INTERVAL_MS = 30000;
+    private static final int DEFAULT_RETRY_BUFFER_PACKETS = 64;
+    private static final long DEFAULT_RETRY_MAX_AGE_MS = 1000;
+    private static final long TIMER_TICK_MS = 100;
+    private static final int PRE_START_BUFFER_MESSAGES = 128;
+    private static final long LAZY_START_RETRY_MS = 1000;
+    private static final long DEFAULT_SHUTDOWN_TIMEOUT_MS = 30000;
+    private static final long SHUTDOWN_GRACE_MS = 1000;
+
+    private static final int IDLE = 0;
+    private static final int STARTING = 1;
+    private static final int STARTED = 2;
+    private static final int STOPPED = 3;
+
+    /**
+     * Passed as sample rate by the methods that do not take one, so that no rate is sent.
+     */
+    private static final double NO_SAMPLE_RATE = Double.NaN;
 
     private static final StatsDClientErrorHandler NO_OP_HANDLER = new StatsDClientErrorHandler() {
         @Override public void handle(final Exception e) { /* No-op */ }
     };
 
     /**
-     * Because NumberFormat is not thread-safe we cannot share instances across threads. Use a ThreadLocal to
-     * create one pre thread as this seems to offer a significant performance improvement over creating one per-thread:
-     * http://stackoverflow.com/a/1285297/2648
-     * https://github.com/indeedeng/java-dogstatsd-client/issues/4
-     */
-    private static final ThreadLocal<NumberFormat> NUMBER_FORMATTERS = new ThreadLocal<NumberFormat>() {
-        @Override
-        protected NumberFormat initialValue() {
-
-            // Always create the formatter for the US locale in order to avoid this bug:
-            // https://github.com/indeedeng/java-dogstatsd-client/issues/3
-            final NumberFormat numberFormatter = NumberFormat.getInstance(Locale.US);
-            numberFormatter.setGroupingUsed(false);
-            numberFormatter.setMaximumFractionDigits(6);
+     * Formatters of values and sample rates, created on first use rather than when the client class
+     * is initialized, which may happen while building a native image.
+     */
+    private static final class Formatters {
+        /**
+         * Because NumberFormat is not thread-safe we cannot share instances across threads. Use a ThreadLocal to
+         * create one pre thread as this seems to offer a significant performance improvement over creating one per-thread:
+         * http://stackoverflow.com/a/1285297/2648
+         * https://github.com/indeedeng/java-dogstatsd-client/issues/4
+         */
+        static final ThreadLocal<NumberFormat> NUMBER = new ThreadLocal<NumberFormat>() {
+            @Override
+            protected NumberFormat initialValue() {
+
+                // Always create the formatter for the US locale in order to avoid this bug:
+                // https://github.com/indeedeng/java-dogstatsd-client/issues/3
+                final NumberFormat numberFormatter = NumberFormat.getInstance(Locale.US);
+                numberFormatter.setGroupingUsed(false);
+                numberFormatter.setMaximumFractionDigits(6);
+
+                // we need to specify a value for Double.NaN that is recognized by dogStatsD
+                if (numberFormatter instanceof DecimalFormat) { // better safe than a runtime error
+                    final DecimalFormat decimalFormat = (DecimalFormat) numberFormatter;
+                    final DecimalFormatSymbols symbols = decimalFormat.getDecimalFormatSymbols();
+                    symbols.setNaN("NaN");
+                    decimalFormat.setDecimalFormatSymbols(symbols);
+                }
 
-            // we need to specify a value for Double.NaN that is recognized by dogStatsD
-            if (numberFormatter instanceof DecimalFormat) { // better safe than a runtime error
-                final DecimalFormat decimalFormat = (DecimalFormat) numberFormatter;
-                final DecimalFormatSymbols symbols = decimalFormat.getDecimalFormatSymbols();
-                symbols.setNaN("NaN");
-                decimalFormat.setDecimalFormatSymbols(symbols);
+                return numberFormatter;
             }
+        };
 
-            return numberFormatter;
-        }
-    };
-
-    private static final ThreadLocal<NumberFormat> SAMPLE_RATE_FORMATTERS = new ThreadLocal<NumberFormat>() {
-        @Override
-        protected NumberFormat initialValue() {
-            final NumberFormat numberFormatter = NumberFormat.getInstance(Locale.US);
-            numberFormatter.setGroupingUsed(false);
-            numberFormatter.setMinimumFractionDigits(6);
-
-            if (numberFormatter instanceof DecimalFormat) {
-                final DecimalFormat decimalFormat = (DecimalFormat) numberFormatter;
-                final DecimalFormatSymbols symbols = decimalFormat.getDecimalFormatSymbols();
-                symbols.setNaN("NaN");
-                decimalFormat.setDecimalFormatSymbols(symbols);
+        static final ThreadLocal<NumberFormat> SAMPLE_RATE = new ThreadLocal<NumberFormat>() {
+            @Override
+            protected NumberFormat initialValue() {
+                final NumberFormat numberFormatter = NumberFormat.getInstance(Locale.US);
+                numberFormatter.setGroupingUsed(false);
+                numberFormatter.setMinimumFractionDigits(6);
+
+                if (numberFormatter instanceof DecimalFormat) {
+                    final DecimalFormat decimalFormat = (DecimalFormat) numberFormatter;
+                    final DecimalFormatSymbols symbols = decimalFormat.getDecimalFormatSymbols();
+                    symbols.setNaN("NaN");
+                    decimalFormat.setDecimalFormatSymbols(symbols);
+                }
+                return numberFormatter;
             }
-            return numberFormatter;
-        }
-    };
+        };
+    }
 
     private final String prefix;
-    private final DatagramChannel clientChannel;
+    private DatagramChannel clientChannel;
     private final StatsDClientErrorHandler handler;
     private final String constantTagsRendered;
 
-    private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
-        final ThreadFactory delegate = Executors.defaultThreadFactory();
+    /**
+     * Names its threads without capturing the thread group of the thread loading the class, which
+     * may be initialized while building a native image.
+     */
+    static final ThreadFactory THREAD_FACTORY = new ThreadFactory() {
+        private final AtomicInteger threadNumber = new AtomicInteger();
         @Override public Thread newThread(final Runnable r) {
-            final Thread result = delegate.newThread(r);
-            result.setName("StatsD-" + result.getName());
+            final Thread result = new Thread(r, "StatsD-thread-" + threadNumber.incrementAndGet());
             result.setDaemon(true);
             return result;
         }
-    });
+    };
 
-    private final StatsDSender statsDSender;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(THREAD_FACTORY);
+
+    /**
+     * Null until the client has started, when started lazily. The channel and the address lookup are
+     * set before it, and thus visible to the threads reading it.
+     */
+    private volatile StatsDSender statsDSender;
+    /**
+     * Closed when the client stops, if {@link Closeable}.
+     */
+    private Callable<SocketAddress> addressLookup;
+    private final AtomicInteger state = new AtomicInteger(IDLE);
+    private final Builder lazyStart;
+    private final PreStartBuffer preStartBuffer;
+    private volatile long nextStartNanos = System.nanoTime();
+    private volatile long stopDeadlineNanos;
+    private final long shutdownTimeoutMs;
+    private final FlushBarriers flushBarriers = new FlushBarriers();
+    private final SamplingKeySource samplingKeySource;
+    private final RateLimiter rateLimiter;
+    private final MonotonicCounters monotonicCounters;
+    private final TimerWheel timerWheel;
+    private final long gaugePollingIntervalMs;
+    private final ConcurrentMap<ContextKey, TimerWheel.Timeout> polledGauges = new ConcurrentHashMap<ContextKey, TimerWheel.Timeout>();
+    private final Set<String> summarizedTimers;
+    private final TimerSummaries timerSummaries;
+    private final long aggregationFlushIntervalMs;
+    private final AtomicBoolean aggregationFlushScheduled = new AtomicBoolean();
 
     private final String ENTITY_ID_TAG_NAME = "dd.internal.entity_id" ;
 
@@ -260,7 +332,8 @@ public class NonBlockingStatsDClient implements StatsDClient {
      * @param constantTags
      *     tags to be added to all content sent
      * @param maxPacketSizeBytes
-     *     the maximum number of bytes for a message that can be sent
+     *     the maximum number of bytes for a message that can be sent, 0 to pick it from the transport:
+     *     1400 over UDP, and 8192 through unix sockets and over TCP
      * @throws StatsDClientException
      *     if the client could not be started
      */
@@ -327,7 +400,7 @@ public class NonBlockingStatsDClient implements StatsDClient {
      */
     public NonBlockingStatsDClient(final String prefix, final String hostname, final int port,
                                    final String[] constantTags, final StatsDClientErrorHandler errorHandler) throws StatsDClientException {
-        this(prefix, Integer.MAX_VALUE, constantTags, errorHandler, staticStatsDAddressResolution(hostname, port), SOCKET_TIMEOUT_MS, SOCKET_BUFFER_BYTES, DEFAULT_MAX_PACKET_SIZE_BYTES, null);
+        this(prefix, Integer.MAX_VALUE, constantTags, errorHandler, staticStatsDAddressResolution(hostname, port), SOCKET_TIMEOUT_MS, SOCKET_BUFFER_BYTES, AUTO_MAX_PACKET_SIZE_BYTES, null);
     }
 
     /**
@@ -361,7 +434,7 @@ public class NonBlockingStatsDClient implements StatsDClient {
      */
     public NonBlockingStatsDClient(final String prefix, final String hostname, final int port, final int queueSize,
                                    final String[] constantTags, final StatsDClientErrorHandler errorHandler) throws StatsDClientException {
-        this(prefix, queueSize, constantTags, errorHandler, staticStatsDAddressResolution(hostname, port), SOCKET_TIMEOUT_MS, SOCKET_BUFFER_BYTES, DEFAULT_MAX_PACKET_SIZE_BYTES, null);
+        this(prefix, queueSize, constantTags, errorHandler, staticStatsDAddressResolution(hostname, port), SOCKET_TIMEOUT_MS, SOCKET_BUFFER_BYTES, AUTO_MAX_PACKET_SIZE_BYTES, null);
     }
 
 
@@ -400,7 +473,7 @@ public class NonBlockingStatsDClient implements StatsDClient {
      */
     public NonBlockingStatsDClient(final String prefix, final String hostname, final int port, final int queueSize,
                                    final String[] constantTags, final StatsDClientErrorHandler errorHandler, String entityID) throws StatsDClientException {
-        this(prefix, queueSize, constantTags, errorHandler, staticStatsDAddressResolution(hostname, port), SOCKET_TIMEOUT_MS, SOCKET_BUFFER_BYTES, DEFAULT_MAX_PACKET_SIZE_BYTES, entityID);
+        this(prefix, queueSize, constantTags, errorHandler, staticStatsDAddressResolution(hostname, port), SOCKET_TIMEOUT_MS, SOCKET_BUFFER_BYTES, AUTO_MAX_PACKET_SIZE_BYTES, entityID);
     }
 
 
@@ -431,7 +504,8 @@ public class NonBlockingStatsDClient implements StatsDClient {
      * @param queueSize
      *     the maximum amount of unprocessed messages in the BlockingQueue.
      * @param maxPacketSizeBytes
-     *     the maximum number of bytes for a message that can be sent
+     *     the maximum number of bytes for a message that can be sent, 0 to pick it from the transport:
+     *     1400 over UDP, and 8192 through unix sockets and over TCP
      * @throws StatsDClientException
      *     if the client could not be started
      */
@@ -469,7 +543,7 @@ public class NonBlockingStatsDClient implements StatsDClient {
      * @param timeout
      *     the timeout in milliseconds for blocking operations. Applies to unix sockets only.
      * @param bufferSize
-     *     the socket buffer size in bytes. Applies to unix sockets only.
+     *     the socket buffer size in bytes, or -1 for the system default.
      * @throws StatsDClientException
      *     if the client could not be started
      */
@@ -496,7 +570,7 @@ public class NonBlockingStatsDClient implements StatsDClient {
      * @param errorHandler
      *     handler to use when an exception occurs during usage, may be null to indicate noop
      * @param addressLookup
-     *     yields the IP address and socket of the StatsD server
+     *     yields the IP address and socket of the StatsD server, closed when the client stops if {@link Closeable}
      * @param queueSize
      *     the maximum amount of unprocessed messages in the BlockingQueue.
      * @throws StatsDClientException
@@ -504,7 +578,7 @@ public class NonBlockingStatsDClient implements StatsDClient {
      */
     public NonBlockingStatsDClient(final String prefix,  final int queueSize, String[] constantTags, final StatsDClientErrorHandler errorHandler,
                                    final Callable<SocketAddress> addressLookup) throws StatsDClientException {
-        this(prefix, queueSize, constantTags, errorHandler, addressLookup, SOCKET_TIMEOUT_MS, SOCKET_BUFFER_BYTES, DEFAULT_MAX_PACKET_SIZE_BYTES, null);
+        this(prefix, queueSize, constantTags, errorHandler, addressLookup, SOCKET_TIMEOUT_MS, SOCKET_BUFFER_BYTES, AUTO_MAX_PACKET_SIZE_BYTES, null);
     }
 
     /**
@@ -525,19 +599,19 @@ public class NonBlockingStatsDClient implements StatsDClient {
      * @param errorHandler
      *     handler to use when an exception occurs during usage, may be null to indicate noop
      * @param addressLookup
-     *     yields the IP address and socket of the StatsD server
+     *     yields the IP address and socket of the StatsD server, closed when the client stops if {@link Closeable}
      * @param queueSize
      *     the maximum amount of unprocessed messages in the BlockingQueue.
      * @param timeout
      *     the timeout in milliseconds for blocking operations. Applies to unix sockets only.
      * @param bufferSize
-     *     the socket buffer size in bytes. Applies to unix sockets only.
+     *     the socket buffer size in bytes, or -1 for the system default.
      * @throws StatsDClientException
      *     if the client could not be started
      */
     public NonBlockingStatsDClient(final String prefix,  final int queueSize, String[] constantTags, final StatsDClientErrorHandler errorHandler,
                                    final Callable<SocketAddress> addressLookup, final int timeout, final int bufferSize) throws StatsDClientException {
-        this(prefix, queueSize, constantTags, errorHandler, addressLookup, timeout, bufferSize, DEFAULT_MAX_PACKET_SIZE_BYTES, null);
+        this(prefix, queueSize, constantTags, errorHandler, addressLookup, timeout, bufferSize, AUTO_MAX_PACKET_SIZE_BYTES, null);
     }
 
     /**
@@ -558,15 +632,16 @@ public class NonBlockingStatsDClient implements StatsDClient {
      * @param errorHandler
      *     handler to use when an exception occurs during usage, may be null to indicate noop
      * @param addressLookup
-     *     yields the IP address and socket of the StatsD server
+     *     yields the IP address and socket of the StatsD server, closed when the client stops if {@link Closeable}
      * @param queueSize
      *     the maximum amount of unprocessed messages in the BlockingQueue.
      * @param timeout
      *     the timeout in milliseconds for blocking operations. Applies to unix sockets only.
      * @param bufferSize
-     *     the socket buffer size in bytes. Applies to unix sockets only.
+     *     the socket buffer size in bytes, or -1 for the system default.
      * @param maxPacketSizeBytes
-     *     the maximum number of bytes for a message that can be sent
+     *     the maximum number of bytes for a message that can be sent, 0 to pick it from the transport:
+     *     1400 over UDP, and 8192 through unix sockets and over TCP
      * @throws StatsDClientException
      *     if the client could not be started
      */
@@ -593,15 +668,16 @@ public class NonBlockingStatsDClient implements StatsDClient {
      * @param errorHandler
      *     handler to use when an exception occurs during usage, may be null to indicate noop
      * @param addressLookup
-     *     yields the IP address and socket of the StatsD server
+     *     yields the IP address and socket of the StatsD server, closed when the client stops if {@link Closeable}
      * @param queueSize
      *     the maximum amount of unprocessed messages in the BlockingQueue.
      * @param timeout
      *     the timeout in milliseconds for blocking operations. Applies to unix sockets only.
      * @param bufferSize
-     *     the socket buffer size in bytes. Applies to unix sockets only.
+     *     the socket buffer size in bytes, or -1 for the system default.
      * @param maxPacketSizeBytes
-     *     the maximum number of bytes for a message that can be sent
+     *     the maximum number of bytes for a message that can be sent, 0 to pick it from the transport:
+     *     1400 over UDP, and 8192 through unix sockets and over TCP
      * @param entityID
      *     the entity id value used with an internal tag for tracking client entity.
      *     If "entityID=null" the client default the value with the environment variable "DD_ENTITY_ID".
@@ -611,6 +687,39 @@ public class NonBlockingStatsDClient implements StatsDClient {
      */
     public NonBlockingStatsDClient(final String prefix,  final int queueSize, String[] constantTags, final StatsDClientErrorHandler errorHandler,
                                    Callable<SocketAddress> addressLookup, final int timeout, final int bufferSize, final int maxPacketSizeBytes, String entityID) throws StatsDClientException {
+        this(builder()
+                .withPrefix(prefix)
+                .withQueueSize(queueSize)
+                .withConstantTags(constantTags)
+                .withErrorHandler(errorHandler)
+                .withAddressLookup(addressLookup)
+                .withTimeout(timeout)
+                .withBufferSize(bufferSize)
+                .withMaxPacketSizeBytes(maxPacketSizeBytes)
+                .withEntityID(entityID));
+    }
+
+    /**
+     * Create a new StatsD client from the configuration gathered by the given builder.
+     * See {@link #builder()}.
+     *
+     * @param builder
+     *     the client configuration
+     * @throws StatsDClientException
+     *     if the client could not be started
+     */
+    protected NonBlockingStatsDClient(final Builder builder) throws StatsDClientException {
+        final String prefix = builder.prefix;
+        String[] constantTags = builder.constantTags;
+        final StatsDClientErrorHandler errorHandler = builder.errorHandler;
+        final String entityID = builder.entityID;
+        samplingKeySource = builder.samplingKeySource;
+        if (builder.rateLimitPerSecond > 0) {
+            rateLimiter = new RateLimiter(builder.rateLimitPerSecond, builder.rateLimitBurst, builder.rateLimitedContexts);
+        } else {
+            rateLimiter = null;
+        }
+
         if((prefix != null) && (!prefix.isEmpty())) {
             this.prefix = new StringBuilder(prefix).append(".").toString();
         } else {
@@ -636,27 +745,169 @@ public class NonBlockingStatsDClient implements StatsDClient {
             constantTagsRendered = null;
         }
 
+        if (builder.lazyStart) {
+            lazyStart = builder;
+            preStartBuffer = new PreStartBuffer(PRE_START_BUFFER_MESSAGES);
+        } else {
+            lazyStart = null;
+            preStartBuffer = null;
+            statsDSender = start(builder);
+            state.set(STARTED);
+            executor.submit(statsDSender);
+        }
+
+        shutdownTimeoutMs = builder.shutdownTimeoutMs;
+        gaugePollingIntervalMs = builder.gaugePollingIntervalMs;
+        timerWheel = new TimerWheel(TIMER_TICK_MS, THREAD_FACTORY, handler);
+        summarizedTimers = builder.summarizedTimers;
+        monotonicCounters = new MonotonicCounters(builder.aggregationFlushIntervalMs > 0, builder.monotonicCountContexts);
+        timerSummaries = new TimerSummaries(builder.timerSummaryContexts);
+        if (builder.aggregationFlushIntervalMs > 0) {
+            aggregationFlushIntervalMs = builder.aggregationFlushIntervalMs;
+            if (lazyStart == null) {
+                scheduleAggregationFlush();
+            }
+        } else {
+            aggregationFlushIntervalMs = DEFAULT_AGGREGATION_FLUSH_INTERVAL_MS;
+        }
+    }
+
+    /**
+     * Looks up the address of the server, opens the channel and creates the sender, not started yet.
+     * The resources opened are closed if any step fails.
+     */
+    private StatsDSender start(final Builder builder) throws StatsDClientException {
         try {
-            final SocketAddress address = addressLookup.call();
-            if (address instanceof UnixSocketAddress) {
-                clientChannel = UnixDatagramChannel.open();
-                // Set send timeout, to handle the case where the transmission buffer is full
-                // If no timeout is set, the send becomes blocking
-                if (timeout > 0) {
-                    clientChannel.setOption(UnixSocketOptions.SO_SNDTIMEO, timeout);
+            return createConfiguredSender(builder);
+        } catch (final RuntimeException e) {
+            closeResources();
+            throw e;
+        }
+    }
+
+    private StatsDSender createConfiguredSender(final Builder builder) throws StatsDClientException {
+        final int queueSize = builder.queueSize;
+        final int timeout = builder.timeout;
+        final int bufferSize = builder.bufferSize;
+        final int maxPacketSizeBytes = builder.maxPacketSizeBytes;
+        final Callable<SocketAddress> addressLookup = builder.resolveAddressLookup(handler);
+        this.addressLookup = addressLookup;
+        if (addressLookup instanceof RefreshingAddressResolution) {
+            ((RefreshingAddressResolution) addressLookup).reportErrorsTo(handler);
+        }
+
+        final StatsDSender statsDSender;
+        final UdpOptions udpOptions = new UdpOptions(bufferSize, builder.trafficClass, builder.nonBlocking);
+        final int packetSizeBytes;
+        if (builder.transport != null) {
+            clientChannel = null;
+            final int transportMaxPacketSizeBytes = builder.transport.getMaxPacketSizeBytes();
+            if (transportMaxPacketSizeBytes <= 0) {
+                packetSizeBytes = maxPacketSizeBytes > 0 ? maxPacketSizeBytes : DEFAULT_MAX_PACKET_SIZE_BYTES;
+            } else {
+                packetSizeBytes = maxPacketSizeBytes > 0 ? Math.min(transportMaxPacketSizeBytes, maxPacketSizeBytes) : transportMaxPacketSizeBytes;
+            }
+            statsDSender = createSender(addressLookup, queueSize, handler, builder.transport, packetSizeBytes);
+        } else {
+            final SocketAddress address;
+            try {
+                // the first resolution of a refreshing lookup runs in the background, the sender waits for it
+                address = addressLookup instanceof RefreshingAddressResolution
+                        ? ((RefreshingAddressResolution) addressLookup).peek()
+                        : addressLookup.call();
+            } catch (final Exception e) {
+                throw new StatsDClientException("Failed to start StatsD client", e);
+            }
+            final boolean stream = address instanceof TcpSocketAddress
+                    || builder.unixStream && address instanceof UnixSocketAddress;
+            if (stream) {
+                // stream transports open their own sockets
+                clientChannel = null;
+                packetSizeBytes = packetSize(address, maxPacketSizeBytes, false);
+                final Transport streamTransport = address instanceof TcpSocketAddress
+                        ? new TcpTransport(builder.outboundBufferBytes,
+                                bufferSize > 0 ? bufferSize : TcpTransport.DEFAULT_SOCKET_BUFFER_BYTES, packetSizeBytes, handler)
+                        : new UnixStreamTransport(Math.max(UnixStreamTransport.DEFAULT_BATCH_BYTES, packetSizeBytes), timeout);
+                statsDSender = createSender(addressLookup, queueSize, handler, streamTransport, packetSizeBytes);
+            } else {
+                try {
+                    if (address instanceof UnixSocketAddress) {
+                        clientChannel = DatagramTransport.unix(timeout, bufferSize).getChannel();
+                    } else {
+                        clientChannel = DatagramChannel.open();
+                        udpOptions.apply(clientChannel);
+                    }
+                } catch (final Exception e) {
+                    throw new StatsDClientException("Failed to start StatsD client", e);
                 }
-                if (bufferSize > 0) {
-                    clientChannel.setOption(UnixSocketOptions.SO_SNDBUF, bufferSize);
+                packetSizeBytes = packetSize(address, maxPacketSizeBytes, builder.probePacketSize);
+
+                statsDSender = createSender(addressLookup, queueSize, handler, clientChannel, packetSizeBytes);
+                if (address instanceof UnixSocketAddress) {
+                    statsDSender.reopenUnixChannel(timeout, bufferSize);
+                }
+                if (builder.batchSize > 1 && address instanceof InetSocketAddress) {
+                    final SendmmsgTransport batchTransport = SendmmsgTransport.open(builder.batchSize, packetSizeBytes,
+                            builder.segmentationOffload, udpOptions, handler);
+                    if (batchTransport != null) {
+                        statsDSender.useTransport(batchTransport);
+                    }
+                } else if (builder.nonBlocking && address instanceof UnixSocketAddress) {
+                    final NonBlockingUnixTransport unixTransport = NonBlockingUnixTransport.open(builder.retryBufferPackets,
+                            packetSizeBytes, builder.retryMaxAgeMs, handler);
+                    if (unixTransport != null) {
+                        statsDSender.useTransport(unixTransport);
+                    }
                 }
-            } else{
-                clientChannel = DatagramChannel.open();
             }
-        } catch (final Exception e) {
-            throw new StatsDClientException("Failed to start StatsD client", e);
+            if (builder.connectedChannel) {
+                statsDSender.useConnectedChannel(builder.addressRefreshIntervalMs);
+            }
+        }
+        statsDSender.useFlushBarriers(flushBarriers);
+        if (builder.circuitBreakerFailures > 0) {
+            statsDSender.useCircuitBreaker(builder.circuitBreakerFailures);
+        }
+        if (builder.spoolFile != null) {
+            try {
+                statsDSender.useTransport(new SpoolingTransport(statsDSender.getTransport(), builder.spoolFile,
+                        builder.spoolBytes, builder.spoolReplayRate, handler));
+            } catch (final IOException e) {
+                throw new StatsDClientException("Failed to start StatsD client", e);
+            }
+        }
+        if (builder.directBuffer) {
+            statsDSender.useBufferPool(new BufferPool(packetSizeBytes, 1, true));
+        }
+        return statsDSender;
+    }
+
+    /**
+     * @param maxPacketSizeBytes
+     *     the size set on the client, 0 to pick the default of the transport
+     * @param probe
+     *     true to probe the largest size the path to the server accepts, at most the size set
+     */
+    private int packetSize(final SocketAddress address, final int maxPacketSizeBytes, final boolean probe) {
+        final int defaultBytes = address instanceof InetSocketAddress ? DEFAULT_MAX_PACKET_SIZE_BYTES : DEFAULT_UDS_MAX_PACKET_SIZE_BYTES;
+        if (probe && !(address instanceof TcpSocketAddress)) {
+            try {
+                return PacketSizeProbe.probe(address, clientChannel, maxPacketSizeBytes > 0 ? maxPacketSizeBytes : DEFAULT_UDS_MAX_PACKET_SIZE_BYTES);
+            } catch (final Exception e) {
+                handler.handle(e);
+            }
         }
+        return maxPacketSizeBytes > 0 ? maxPacketSizeBytes : defaultBytes;
+    }
 
-        statsDSender = createSender(addressLookup, queueSize, handler, clientChannel, maxPacketSizeBytes);
-        executor.submit(statsDSender);
+    private void scheduleAggregationFlush() {
+        if (!aggregationFlushScheduled.get() && aggregationFlushScheduled.compareAndSet(false, true)) {
+            timerWheel.schedule(new Runnable() {
+                @Override public void run() {
+                    flushAggregates();
+                }
+            }, aggregationFlushIntervalMs);
+        }
     }
 
     protected StatsDSender createSender(final Callable<SocketAddress> addressLookup, final int queueSize,
@@ -664,17 +915,46 @@ public class NonBlockingStatsDClient implements StatsDClient {
         return new StatsDSender(addressLookup, queueSize, handler, clientChannel, maxPacketSizeBytes);
     }
 
+    protected StatsDSender createSender(final Callable<SocketAddress> addressLookup, final int queueSize,
+                                        final StatsDClientErrorHandler handler, final Transport transport, final int maxPacketSizeBytes) {
+        return new StatsDSender(addressLookup, queueSize, handler, transport, maxPacketSizeBytes);
+    }
+
     /**
      * Cleanly shut down this StatsD client. This method may throw an exception if
-     * the socket cannot be closed.
+     * the socket cannot be closed. The messages queued are sent for the shutdown
+     * timeout at most, see {@link Builder#withShutdownTimeout(long)}.
      */
     @Override
     public void stop() {
+        stop(shutdownTimeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Shuts down this StatsD client, sending the messages queued until the timeout expires, and
+     * dropping the ones left then. An idle client stops at once.
+     *
+     * @param timeout
+     *     the time to send the messages queued for
+     * @param unit
+     *     the unit of the timeout
+     * @return the number of messages sent and dropped while stopping
+     */
+    public ShutdownReport stop(final long timeout, final TimeUnit unit) {
+        final long deadlineNanos = System.nanoTime() + unit.toNanos(timeout);
         try {
-            statsDSender.shutdown();
+            timerWheel.stop();
+            flushAggregates();
+            stopDeadlineNanos = deadlineNanos;
+            if (state.getAndSet(STOPPED) == STARTED) {
+                statsDSender.shutdown(deadlineNanos);
+            }
+            // a client still starting shuts its sender down once started
             executor.shutdown();
             try {
-                executor.awaitTermination(30, TimeUnit.SECONDS);
+                // past the deadline, the sender drops the messages left once its current write completes
+                executor.awaitTermination(Math.max(0, deadlineNanos - System.nanoTime())
+                        + TimeUnit.MILLISECONDS.toNanos(SHUTDOWN_GRACE_MS), TimeUnit.NANOSECONDS);
                 if (!executor.isTerminated()) {
                     executor.shutdownNow();
                 }
@@ -689,15 +969,106 @@ public class NonBlockingStatsDClient implements StatsDClient {
             handler.handle(e);
         }
         finally {
-            if (clientChannel != null) {
-                try {
-                    clientChannel.close();
-                }
-                catch (final IOException e) {
-                    handler.handle(e);
-                }
+            closeResources();
+            final IOException failure = stopFailure();
+            if (failure != null) {
+                flushBarriers.failAll(failure);
+            } else {
+                flushBarriers.completeAll();
             }
         }
+        final StatsDSender sender = statsDSender;
+        return sender == null
+                ? new ShutdownReport(0, 0)
+                : new ShutdownReport(sender.getFlushedMessageCount(), sender.getAbandonedMessageCount());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean flush(final long timeout, final TimeUnit unit) {
+        try {
+            flushAsync().get(timeout, unit);
+            return true;
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (final ExecutionException e) {
+            return false;
+        } catch (final TimeoutException e) {
+            return false;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Future<Void> flushAsync() {
+        flushAggregates();
+        final FlushBarriers.Barrier barrier = flushBarriers.register();
+        final StatsDSender sender = statsDSender;
+        if (sender != null) {
+            if (!sender.send(barrier.marker)) {
+                // stopped, the messages queued are sent or dropped
+                completeOnStop(barrier);
+            }
+        } else if (state.get() == STOPPED) {
+            completeOnStop(barrier);
+        } else {
+            startLazily();
+            final int offered = preStartBuffer.offer(barrier.marker);
+            if (offered == PreStartBuffer.DRAINED) {
+                awaitSender().send(barrier.marker);
+            } else if (offered == PreStartBuffer.DROPPED) {
+                flushBarriers.fail(barrier.marker, new IOException("Could not flush: too many messages before the client started"));
+            }
+        }
+        return barrier;
+    }
+
+    private void completeOnStop(final FlushBarriers.Barrier barrier) {
+        final IOException failure = stopFailure();
+        if (failure != null) {
+            flushBarriers.fail(barrier.marker, failure);
+        } else {
+            flushBarriers.complete(barrier.marker);
+        }
+    }
+
+    /**
+     * @return the reason to fail the flushes of a stopped client, if messages were abandoned while
+     *     stopping, or never sent because the client never started, null otherwise
+     */
+    private IOException stopFailure() {
+        final StatsDSender sender = statsDSender;
+        if (sender == null) {
+            return preStartBuffer != null ? new IOException("Could not flush: the client stopped before it started") : null;
+        }
+        final long abandoned = sender.getAbandonedMessageCount();
+        return abandoned > 0 ? new IOException("Could not flush: " + abandoned + " messages abandoned while stopping") : null;
+    }
+
+    private void closeResources() {
+        if (clientChannel != null) {
+            try {
+                clientChannel.close();
+            }
+            catch (final IOException e) {
+                handler.handle(e);
+            }
+            clientChannel = null;
+        }
+        if (addressLookup instanceof Closeable) {
+            try {
+                ((Closeable) addressLookup).close();
+            }
+            catch (final IOException e) {
+                handler.handle(e);
+            }
+        }
+        addressLookup = null;
     }
 
     @Override
@@ -705,6 +1076,25 @@ public class NonBlockingStatsDClient implements StatsDClient {
         stop();
     }
 
+    /**
+     * @return the number of messages dropped because the queue of the sender was full, or while
+     *     sends were suspended after consecutive failures, see {@link Builder#withCircuitBreaker(int)}
+     */
+    public long getDroppedMessageCount() {
+        final StatsDSender sender = statsDSender;
+        final long preStartDropped = preStartBuffer == null ? 0 : preStartBuffer.getDroppedMessageCount();
+        return sender == null ? preStartDropped : preStartDropped + sender.getDroppedMessageCount();
+    }
+
+    /**
+     * @return the number of times the transport failed to send packets, each failure being reported to the
+     *     error handler; a failure may cover several packets when they are sent in batches
+     */
+    public long getFailedSendCount() {
+        final StatsDSender sender = statsDSender;
+        return sender == null ? 0 : sender.getFailedSendCount();
+    }
+
     /**
      * Generate a suffix conveying the given tag list to the client
      */
@@ -753,7 +1143,7 @@ public class NonBlockingStatsDClient implements StatsDClient {
      */
     @Override
     public void count(final String aspect, final long delta, final String... tags) {
-        send(new StringBuilder(prefix).append(aspect).append(":").append(delta).append("|c").append(tagString(tags)).toString());
+        sendMetric(aspect, delta, "c", NO_SAMPLE_RATE, tags);
     }
     
     /**
@@ -764,7 +1154,7 @@ public class NonBlockingStatsDClient implements StatsDClient {
     	if(isInvalidSample(sampleRate)) {
     		return;
     	}
-        send(new StringBuilder(prefix).append(aspect).append(":").append(delta).append("|c|@").append(SAMPLE_RATE_FORMATTERS.get().format(sampleRate)).append(tagString(tags)).toString());
+        sendMetric(aspect, delta, "c", sampleRate, tags);
     }
 
     /**
@@ -781,7 +1171,7 @@ public class NonBlockingStatsDClient implements StatsDClient {
      */
     @Override
     public void count(final String aspect, final double delta, final String... tags) {
-        send(new StringBuilder(prefix).append(aspect).append(":").append(NUMBER_FORMATTERS.get().format(delta)).append("|c").append(tagString(tags)).toString());
+        sendMetric(aspect, delta, "c", NO_SAMPLE_RATE, tags);
     }
 
     /**
@@ -792,7 +1182,7 @@ public class NonBlockingStatsDClient implements StatsDClient {
         if(isInvalidSample(sampleRate)) {
             return;
         }
-        send(new StringBuilder(prefix).append(aspect).append(":").append(NUMBER_FORMATTERS.get().format(delta)).append("|c|@").append(SAMPLE_RATE_FORMATTERS.get().format(sampleRate)).append(tagString(tags)).toString());
+        sendMetric(aspect, delta, "c", sampleRate, tags);
     }
 
     /**
@@ -889,7 +1279,7 @@ public class NonBlockingStatsDClient implements StatsDClient {
     public void recordGaugeValue(final String aspect, final double value, final String... tags) {
         /* Intentionally using %s rather than %f here to avoid
          * padding with extra 0s to represent precision */
-        send(new StringBuilder(prefix).append(aspect).append(":").append(NUMBER_FORMATTERS.get().format(value)).append("|g").append(tagString(tags)).toString());
+        sendMetric(aspect, value, "g", NO_SAMPLE_RATE, tags);
     }
     
     /**
@@ -900,7 +1290,7 @@ public class NonBlockingStatsDClient implements StatsDClient {
     	if(isInvalidSample(sampleRate)) {
     		return;
     	}
-        send(new StringBuilder(prefix).append(aspect).append(":").append(NUMBER_FORMATTERS.get().format(value)).append("|g|@").append(SAMPLE_RATE_FORMATTERS.get().format(sampleRate)).append(tagString(tags)).toString());
+        sendMetric(aspect, value, "g", sampleRate, tags);
     }
 
     /**
@@ -934,7 +1324,7 @@ public class NonBlockingStatsDClient implements StatsDClient {
      */
     @Override
     public void recordGaugeValue(final String aspect, final long value, final String... tags) {
-        send(new StringBuilder(prefix).append(aspect).append(":").append(value).append("|g").append(tagString(tags)).toString());
+        sendMetric(aspect, value, "g", NO_SAMPLE_RATE, tags);
     }
     
     /**
@@ -945,7 +1335,7 @@ public class NonBlockingStatsDClient implements StatsDClient {
     	if(isInvalidSample(sampleRate)) {
     		return;
     	}
-        send(new StringBuilder(prefix).append(aspect).append(":").append(value).append("|g|@").append(SAMPLE_RATE_FORMATTERS.get().format(sampleRate)).append(tagString(tags)).toString());
+        sendMetric(aspect, value, "g", sampleRate, tags);
     }
 
     /**
@@ -978,7 +1368,15 @@ public class NonBlockingStatsDClient implements StatsDClient {
      */
     @Override
     public void recordExecutionTime(final String aspect, final long timeInMs, final String... tags) {
-        send(new StringBuilder(prefix).append(aspect).append(":").append(timeInMs).append("|ms").append(tagString(tags)).toString());
+        if (summarizedTimers.contains(aspect)) {
+            final TimerSummary summary = timerSummary(aspect, tags);
+            if (summary != TimerSummary.NO_OP) {
+                summary.record(timeInMs);
+                return;
+            }
+            // too many contexts summarized already, sent as a plain timer
+        }
+        sendMetric(aspect, timeInMs, "ms", NO_SAMPLE_RATE, tags);
     }
     
     /**
@@ -986,10 +1384,18 @@ public class NonBlockingStatsDClient implements StatsDClient {
      */
     @Override
     public void recordExecutionTime(final String aspect, final long timeInMs, final double sampleRate, final String... tags) {
+        if (summarizedTimers.contains(aspect)) {
+            final TimerSummary summary = timerSummary(aspect, tags);
+            if (summary != TimerSummary.NO_OP) {
+                summary.record(timeInMs);
+                return;
+            }
+            // too many contexts summarized already, sent as a plain timer
+        }
     	if(isInvalidSample(sampleRate)) {
     		return;
     	}
-        send(new StringBuilder(prefix).append(aspect).append(":").append(timeInMs).append("|ms|@").append(SAMPLE_RATE_FORMATTERS.get().format(sampleRate)).append(tagString(tags)).toString());
+        sendMetric(aspect, timeInMs, "ms", sampleRate, tags);
     }
 
     /**
@@ -1024,7 +1430,7 @@ public class NonBlockingStatsDClient implements StatsDClient {
     public void recordHistogramValue(final String aspect, final double value, final String... tags) {
         /* Intentionally using %s rather than %f here to avoid
          * padding with extra 0s to represent precision */
-        send(new StringBuilder(prefix).append(aspect).append(":").append(NUMBER_FORMATTERS.get().format(value)).append("|h").append(tagString(tags)).toString());
+        sendMetric(aspect, value, "h", NO_SAMPLE_RATE, tags);
     }
     
     /**
@@ -1037,7 +1443,7 @@ public class NonBlockingStatsDClient implements StatsDClient {
     	}
     	  /* Intentionally using %s rather than %f here to avoid
     	   * padding with extra 0s to represent precision */
-        send(new StringBuilder(prefix).append(aspect).append(":").append(NUMBER_FORMATTERS.get().format(value)).append("|h|@").append(SAMPLE_RATE_FORMATTERS.get().format(sampleRate)).append(tagString(tags)).toString());
+        sendMetric(aspect, value, "h", sampleRate, tags);
     }
 
     /**
@@ -1070,7 +1476,7 @@ public class NonBlockingStatsDClient implements StatsDClient {
      */
     @Override
     public void recordHistogramValue(final String aspect, final long value, final String... tags) {
-        send(new StringBuilder(prefix).append(aspect).append(":").append(value).append("|h").append(tagString(tags)).toString());
+        sendMetric(aspect, value, "h", NO_SAMPLE_RATE, tags);
     }
     
     /**
@@ -1081,7 +1487,7 @@ public class NonBlockingStatsDClient implements StatsDClient {
     	if(isInvalidSample(sampleRate)) {
     		return;
     	}
-        send(new StringBuilder(prefix).append(aspect).append(":").append(value).append("|h|@").append(SAMPLE_RATE_FORMATTERS.get().format(sampleRate)).append(tagString(tags)).toString());
+        sendMetric(aspect, value, "h", sampleRate, tags);
     }
 
     /**
@@ -1118,7 +1524,7 @@ public class NonBlockingStatsDClient implements StatsDClient {
     public void recordDistributionValue(final String aspect, final double value, final String... tags) {
         /* Intentionally using %s rather than %f here to avoid
          * padding with extra 0s to represent precision */
-        send(new StringBuilder(prefix).append(aspect).append(":").append(NUMBER_FORMATTERS.get().format(value)).append("|d").append(tagString(tags)).toString());
+        sendMetric(aspect, value, "d", NO_SAMPLE_RATE, tags);
     }
     
     /**
@@ -1131,7 +1537,7 @@ public class NonBlockingStatsDClient implements StatsDClient {
     	}
     	  /* Intentionally using %s rather than %f here to avoid
     	   * padding with extra 0s to represent precision */
-        send(new StringBuilder(prefix).append(aspect).append(":").append(NUMBER_FORMATTERS.get().format(value)).append("|d|@").append(SAMPLE_RATE_FORMATTERS.get().format(sampleRate)).append(tagString(tags)).toString());
+        sendMetric(aspect, value, "d", sampleRate, tags);
     }
 
     /**
@@ -1165,7 +1571,7 @@ public class NonBlockingStatsDClient implements StatsDClient {
      */
     @Override
     public void recordDistributionValue(final String aspect, final long value, final String... tags) {
-        send(new StringBuilder(prefix).append(aspect).append(":").append(value).append("|d").append(tagString(tags)).toString());
+        sendMetric(aspect, value, "d", NO_SAMPLE_RATE, tags);
     }
     
     /**
@@ -1176,7 +1582,7 @@ public class NonBlockingStatsDClient implements StatsDClient {
     	if(isInvalidSample(sampleRate)) {
     		return;
     	}
-        send(new StringBuilder(prefix).append(aspect).append(":").append(value).append("|d|@").append(SAMPLE_RATE_FORMATTERS.get().format(sampleRate)).append(tagString(tags)).toString());
+        sendMetric(aspect, value, "d", sampleRate, tags);
     }
 
     /**
@@ -1242,6 +1648,9 @@ public class NonBlockingStatsDClient implements StatsDClient {
      */
     @Override
     public void recordEvent(final Event event, final String... tags) {
+        if (isSuspended()) {
+            return;
+        }
         final String title = escapeEventString(prefix + event.getTitle());
         final String text = escapeEventString(event.getText());
         send(new StringBuilder("_e{").append(title.length()).append(",").append(text.length()).append("}:").append(title)
@@ -1264,6 +1673,9 @@ public class NonBlockingStatsDClient implements StatsDClient {
      */
     @Override
     public void recordServiceCheckRun(final ServiceCheck sc) {
+        if (isSuspended()) {
+            return;
+        }
         send(toStatsDString(sc));
     }
 
@@ -1379,15 +1791,263 @@ public class NonBlockingStatsDClient implements StatsDClient {
     public void recordSetValue(final String aspect, final String value, final String... tags) {
         // documentation is light, but looking at dogstatsd source, we can send string values
         // here instead of numbers
-        send(new StringBuilder(prefix).append(aspect).append(":").append(value).append("|s").append(tagString(tags)).toString());
+        sendMetric(aspect, value, "s", NO_SAMPLE_RATE, tags);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void monotonicCount(final String aspect, final long cumulativeValue, final String... tags) {
+        final long delta = monotonicCounters.update(aspect, cumulativeValue, tags);
+        if (delta > 0) {
+            count(aspect, delta, tags);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void registerGauge(final String aspect, final LongGaugeSupplier supplier, final String... tags) {
+        registerGauge(aspect, supplier, gaugePollingIntervalMs, tags);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void registerGauge(final String aspect, final LongGaugeSupplier supplier, final long intervalMs, final String... tags) {
+        registerPolledGauge(new PolledGauge(new ContextKey(aspect, tags).copy()) {
+            @Override public void run() {
+                recordGaugeValue(key.getAspect(), supplier.getAsLong(), key.getTags());
+            }
+        }, intervalMs);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void registerGauge(final String aspect, final DoubleGaugeSupplier supplier, final String... tags) {
+        registerGauge(aspect, supplier, gaugePollingIntervalMs, tags);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void registerGauge(final String aspect, final DoubleGaugeSupplier supplier, final long intervalMs, final String... tags) {
+        registerPolledGauge(new PolledGauge(new ContextKey(aspect, tags).copy()) {
+            @Override public void run() {
+                recordGaugeValue(key.getAspect(), supplier.getAsDouble(), key.getTags());
+            }
+        }, intervalMs);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void unregisterGauge(final String aspect, final String... tags) {
+        final TimerWheel.Timeout timeout = polledGauges.remove(new ContextKey(aspect, tags));
+        if (timeout != null) {
+            timeout.cancel();
+        }
+    }
+
+    private void registerPolledGauge(final PolledGauge gauge, final long intervalMs) {
+        final TimerWheel.Timeout previous = polledGauges.put(gauge.key, timerWheel.schedule(gauge, intervalMs));
+        if (previous != null) {
+            previous.cancel();
+        }
+    }
+
+    /**
+     * A registered gauge, polled from the timer wheel thread. All the gauges due on the same tick are
+     * polled back to back, so that the sender packs their values into as few packets as possible.
+     */
+    private abstract static class PolledGauge implements Runnable {
+        final ContextKey key;
+
+        PolledGauge(final ContextKey key) {
+            this.key = key;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public TimerSummary timerSummary(final String aspect, final String... tags) {
+        final TimerSummary summary = timerSummaries.get(aspect, tags);
+        if (summary != TimerSummary.NO_OP) {
+            scheduleAggregationFlush();
+        }
+        return summary;
+    }
+
+    private void flushAggregates() {
+        try {
+            monotonicCounters.flush(this);
+            timerSummaries.flush(this);
+        } catch (final Exception e) {
+            handler.handle(e);
+        }
+    }
+
+    private void sendMetric(final String aspect, final long value, final String type, final double sampleRate, final String[] tags) {
+        if (isSuspended()) {
+            return;
+        }
+        final double rate = acquire(aspect, type, sampleRate, tags);
+        if (rate != RateLimiter.SUPPRESSED) {
+            send(appendSuffix(new StringBuilder(prefix).append(aspect).append(":").append(value), type, rate, tags));
+        }
+    }
+
+    private void sendMetric(final String aspect, final double value, final String type, final double sampleRate, final String[] tags) {
+        if (isSuspended()) {
+            return;
+        }
+        final double rate = acquire(aspect, type, sampleRate, tags);
+        if (rate != RateLimiter.SUPPRESSED) {
+            send(appendSuffix(new StringBuilder(prefix).append(aspect).append(":").append(Formatters.NUMBER.get().format(value)), type, rate, tags));
+        }
+    }
+
+    private void sendMetric(final String aspect, final String value, final String type, final double sampleRate, final String[] tags) {
+        if (isSuspended()) {
+            return;
+        }
+        final double rate = acquire(aspect, type, sampleRate, tags);
+        if (rate != RateLimiter.SUPPRESSED) {
+            send(appendSuffix(new StringBuilder(prefix).append(aspect).append(":").append(value), type, rate, tags));
+        }
+    }
+
+    private String appendSuffix(final StringBuilder builder, final String type, final double sampleRate, final String[] tags) {
+        builder.append("|").append(type);
+        if (!Double.isNaN(sampleRate)) {
+            builder.append("|@").append(Formatters.SAMPLE_RATE.get().format(sampleRate));
+        }
+        return builder.append(tagString(tags)).toString();
+    }
+
+    /**
+     * Checks the rate limit of the context, if any, before anything gets formatted.
+     *
+     * @return {@link RateLimiter#SUPPRESSED} if the metric must be dropped, else the sample rate to send.
+     *     For the types the agent scales by their sample rate, submissions suppressed since the last one
+     *     sent are folded into the sample rate, so that the agent scales the values it receives back up.
+     *     Gauges and sets over the limit are plainly dropped.
+     */
+    private double acquire(final String aspect, final String type, final double sampleRate, final String[] tags) {
+        if (rateLimiter == null) {
+            return sampleRate;
+        }
+        final int suppressed = rateLimiter.acquire(aspect, tags);
+        if (suppressed == RateLimiter.SUPPRESSED) {
+            return RateLimiter.SUPPRESSED;
+        }
+        if (suppressed == 0 || !isScaledBySampleRate(type)) {
+            return sampleRate;
+        }
+        return (Double.isNaN(sampleRate) ? 1 : sampleRate) / (suppressed + 1);
+    }
+
+    /**
+     * @return true for counters, histograms, distributions and timers, false for gauges and sets
+     */
+    private static boolean isScaledBySampleRate(final String type) {
+        return "c".equals(type) || "h".equals(type) || "d".equals(type) || "ms".equals(type);
+    }
+
+    /**
+     * @return true while sends are suspended by the circuit breaker, the message being counted as dropped
+     */
+    private boolean isSuspended() {
+        final StatsDSender sender = statsDSender;
+        if (sender != null && sender.isCircuitOpen()) {
+            sender.countDroppedMessage();
+            return true;
+        }
+        return false;
     }
 
     private void send(final String message) {
-        statsDSender.send(message);
+        final StatsDSender sender = statsDSender;
+        if (sender != null) {
+            sender.send(message);
+            return;
+        }
+        startLazily();
+        if (preStartBuffer.offer(message) == PreStartBuffer.DRAINED) {
+            awaitSender().send(message);
+        }
+    }
+
+    /**
+     * @return the sender of a client started lazily, once the messages sent before it started are
+     *     queued to it and it is published, which takes no longer than moving those messages
+     */
+    private StatsDSender awaitSender() {
+        StatsDSender sender;
+        while ((sender = statsDSender) == null) {
+            Thread.yield();
+        }
+        return sender;
+    }
+
+    /**
+     * Starts the client on its sender thread, on the first message sent, and at most once a second
+     * after failures. Only the thread moving the client out of its idle state submits the start.
+     */
+    private void startLazily() {
+        if (state.get() == IDLE && System.nanoTime() - nextStartNanos >= 0 && state.compareAndSet(IDLE, STARTING)) {
+            try {
+                executor.submit(new Runnable() {
+                    @Override public void run() {
+                        startAndRun();
+                    }
+                });
+            } catch (final RejectedExecutionException e) {
+                // stopped meanwhile
+            }
+        }
+    }
+
+    private void startAndRun() {
+        final StatsDSender sender;
+        try {
+            sender = start(lazyStart);
+        } catch (final Exception e) {
+            nextStartNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(LAZY_START_RETRY_MS);
+            state.compareAndSet(STARTING, IDLE);
+            handler.handle(e);
+            return;
+        }
+        preStartBuffer.drainTo(sender);
+        // published once drained, so that the messages sent meanwhile queue behind the ones buffered
+        statsDSender = sender;
+        if (!state.compareAndSet(STARTING, STARTED)) {
+            // stopped while starting
+            sender.shutdown(stopDeadlineNanos);
+        } else if (lazyStart.aggregationFlushIntervalMs > 0) {
+            // the timer wheel thread starts along with the client
+            scheduleAggregationFlush();
+        }
+        sender.run();
     }
     
     private boolean isInvalidSample(double sampleRate) {
-        return sampleRate != 1 && ThreadLocalRandom.current().nextDouble() > sampleRate;
+        if (sampleRate == 1) {
+            return false;
+        }
+        if (samplingKeySource != null) {
+            return !ConsistentSampler.isSampled(samplingKeySource.samplingKey(), sampleRate);
+        }
+        return ThreadLocalRandom.current().nextDouble() > sampleRate;
     }
 
     /**
@@ -1396,7 +2056,7 @@ public class NonBlockingStatsDClient implements StatsDClient {
      * @param hostname
      *     the host name of the targeted StatsD server. If the environment variable
      *     "DD_AGENT_HOST" is set, this parameter is overwritten by the environment
-     *     variable value.
+     *     variable value. A "tcp://" prefix yields a {@link TcpSocketAddress}.
      * @param port
      *     the port of the targeted StatsD server. If the environment variable
      *     "DD_DOGSTATSD_PORT" is set, this parameter is overwritten by the environment
@@ -1408,6 +2068,8 @@ public class NonBlockingStatsDClient implements StatsDClient {
             @Override public SocketAddress call() throws UnknownHostException {
                 if (port == 0) { // Hostname is a file path to the socket
                     return new UnixSocketAddress(hostname);
+                } else if (TcpSocketAddress.hasScheme(hostname)) {
+                    return TcpSocketAddress.parse(hostname, port, true);
                 } else {
                     return new InetSocketAddress(InetAddress.getByName(hostname), port);
                 }
@@ -1432,6 +2094,55 @@ public class NonBlockingStatsDClient implements StatsDClient {
         };
     }
 
+    /**
+     * Lookup the address for the given host name in the background, right away then once per time to
+     * live. Lookups wait for the first resolution only, and a failed refresh keeps the last address
+     * resolved. Failed resolutions are reported to the error handler of the client the lookup is given
+     * to, which stops the refreshes when it stops.
+     *
+     * @param hostname the host name of the targeted StatsD server
+     * @param port     the port of the targeted StatsD server, 0 if the host name is the path of a unix socket
+     * @param ttlMs    the interval in milliseconds at which the address is resolved again
+     * @return a function that yields the last address resolved
+     * @throws Exception if the host name is the path of a unix socket that cannot be looked up
+     */
+    public static Callable<SocketAddress> refreshingAddressResolution(final String hostname, final int port, final long ttlMs) throws Exception {
+        return refreshingAddressResolution(hostname, port, ttlMs, null);
+    }
+
+    /**
+     * Lookup the address for the given host name in the background, right away then once per time to
+     * live, see {@link #refreshingAddressResolution(String, int, long)}.
+     *
+     * @param hostname the host name of the targeted StatsD server
+     * @param port     the port of the targeted StatsD server, 0 if the host name is the path of a unix socket
+     * @param ttlMs    the interval in milliseconds at which the address is resolved again
+     * @param handler  the handler of the failed resolutions
+     * @return a function that yields the last address resolved
+     * @throws Exception if the host name is the path of a unix socket that cannot be looked up
+     */
+    public static Callable<SocketAddress> refreshingAddressResolution(final String hostname, final int port, final long ttlMs,
+                                                                      final StatsDClientErrorHandler handler) throws Exception {
+        if (port == 0) { // Hostname is a file path to the socket, nothing to refresh
+            return staticAddressResolution(hostname, port);
+        }
+        return new RefreshingAddressResolution(hostname, port, ttlMs, handler);
+    }
+
+    private static Callable<SocketAddress> refreshingStatsDAddressResolution(String hostname, int port, final long ttlMs,
+                                                                             final StatsDClientErrorHandler handler) throws StatsDClientException {
+        if (hostname == null) {
+            hostname = getHostnameFromEnvVar();
+            if (port == 0) {
+                port = getPortFromEnvVar(DEFAULT_DOGSTATSD_PORT);
+            }
+        }
+        if (port == 0) {
+            return staticStatsDAddressResolution(hostname, port);
+        }
+        return new RefreshingAddressResolution(hostname, port, ttlMs, handler);
+    }
+
     private static Callable<SocketAddress> staticStatsDAddressResolution(String hostname, int port) throws StatsDClientException {
         try {
             if (hostname == null) {
@@ -1446,4 +2157,474 @@ public class NonBlockingStatsDClient implements StatsDClient {
             throw new StatsDClientException("Failed to lookup StatsD host", e);
         }
     }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Gathers the configuration of a {@link NonBlockingStatsDClient}. Settings left untouched
+     * keep the same defaults as the constructors.
+     */
+    public static class Builder {
+        private String prefix;
+        private String hostname;
+        private int port;
+        private Callable<SocketAddress> addressLookup;
+        private int queueSize = Integer.MAX_VALUE;
+        private String[] constantTags;
+        private StatsDClientErrorHandler errorHandler;
+        private int timeout = SOCKET_TIMEOUT_MS;
+        private int bufferSize = SOCKET_BUFFER_BYTES;
+        private int maxPacketSizeBytes = AUTO_MAX_PACKET_SIZE_BYTES;
+        private String entityID;
+        private SamplingKeySource samplingKeySource;
+        private double rateLimitPerSecond;
+        private int rateLimitBurst;
+        private int rateLimitedContexts = DEFAULT_RATE_LIMITED_CONTEXTS;
+        private int monotonicCountContexts = DEFAULT_MONOTONIC_COUNT_CONTEXTS;
+        private int timerSummaryContexts = DEFAULT_TIMER_SUMMARY_CONTEXTS;
+        private long aggregationFlushIntervalMs;
+        private long gaugePollingIntervalMs = DEFAULT_GAUGE_POLLING_INTERVAL_MS;
+        private Set<String> summarizedTimers = Collections.emptySet();
+        private boolean connectedChannel;
+        private long addressRefreshIntervalMs = DEFAULT_ADDRESS_REFRESH_INTERVAL_MS;
+        private long addressResolutionTtlMs;
+        private boolean directBuffer;
+        private int batchSize;
+        private boolean segmentationOffload;
+        private boolean nonBlocking;
+        private boolean unixStream;
+        private int outboundBufferBytes = TcpTransport.DEFAULT_OUTBOUND_BUFFER_BYTES;
+        private Transport transport;
+        private boolean probePacketSize;
+        private int trafficClass;
+        private File spoolFile;
+        private int circuitBreakerFailures;
+        private int spoolBytes = SpoolingTransport.DEFAULT_SPOOL_BYTES;
+        private int spoolReplayRate = SpoolingTransport.DEFAULT_REPLAY_RATE;
+        private int retryBufferPackets = DEFAULT_RETRY_BUFFER_PACKETS;
+        private long retryMaxAgeMs = DEFAULT_RETRY_MAX_AGE_MS;
+        private boolean lazyStart;
+        private long shutdownTimeoutMs = DEFAULT_SHUTDOWN_TIMEOUT_MS;
+
+        protected Builder() {}
+
+        public NonBlockingStatsDClient build() throws StatsDClientException {
+            return new NonBlockingStatsDClient(this);
+        }
+
+        /**
+         * @param prefix
+         *     the prefix to apply to keys sent via this client ; Default: none
+         */
+        public Builder withPrefix(final String prefix) {
+            this.prefix = prefix;
+            return this;
+        }
+
+        /**
+         * @param hostname
+         *     the host name of the targeted StatsD server, or the path of its unix socket when the port is 0,
+         *     prefixed with "tcp://" to send over TCP ; Default: the environment variable "DD_AGENT_HOST"
+         */
+        public Builder withHostname(final String hostname) {
+            this.hostname = hostname;
+            return this;
+        }
+
+        /**
+         * @param port
+         *     the port of the targeted StatsD server ; Default: the environment variable "DD_DOGSTATSD_PORT",
+         *     else 8125, when no host name is set
+         */
+        public Builder withPort(final int port) {
+            this.port = port;
+            return this;
+        }
+
+        /**
+         * @param addressLookup
+         *     yields the IP address and socket of the StatsD server ; takes precedence over the host name
+         *     and port ; closed when the client stops if {@link Closeable}, as the lookups of
+         *     {@link NonBlockingStatsDClient#refreshingAddressResolution(String, int, long)} are, so give
+         *     each client its own ; Default: a static resolution of the host name and port
+         */
+        public Builder withAddressLookup(final Callable<SocketAddress> addressLookup) {
+            this.addressLookup = addressLookup;
+            return this;
+        }
+
+        /**
+         * @param queueSize
+         *     the maximum amount of unprocessed messages in the BlockingQueue ; Default: unbounded
+         */
+        public Builder withQueueSize(final int queueSize) {
+            this.queueSize = queueSize;
+            return this;
+        }
+
+        /**
+         * @param constantTags
+         *     tags to be added to all content sent ; Default: none
+         */
+        public Builder withConstantTags(final String... constantTags) {
+            this.constantTags = constantTags;
+            return this;
+        }
+
+        /**
+         * @param errorHandler
+         *     handler to use when an exception occurs during usage ; Default: noop
+         */
+        public Builder withErrorHandler(final StatsDClientErrorHandler errorHandler) {
+            this.errorHandler = errorHandler;
+            return this;
+        }
+
+        /**
+         * @param timeout
+         *     the timeout in milliseconds for blocking operations. Applies to unix sockets only ; Default: 100
+         */
+        public Builder withTimeout(final int timeout) {
+            this.timeout = timeout;
+            return this;
+        }
+
+        /**
+         * @param bufferSize
+         *     the send buffer size in bytes of the socket ; Default: the system default, 512 KiB for TCP
+         */
+        public Builder withBufferSize(final int bufferSize) {
+            this.bufferSize = bufferSize;
+            return this;
+        }
+
+        /**
+         * @param maxPacketSizeBytes
+         *     the maximum number of bytes for a message that can be sent, 0 to pick it from the transport ;
+         *     Default: 0, that is 1400 over UDP, and 8192 through unix sockets and over TCP
+         */
+        public Builder withMaxPacketSizeBytes(final int maxPacketSizeBytes) {
+            this.maxPacketSizeBytes = maxPacketSizeBytes;
+            return this;
+        }
+
+        /**
+         * @param entityID
+         *     the entity id value used with an internal tag for tracking client entity ;
+         *     Default: the environment variable "DD_ENTITY_ID"
+         */
+        public Builder withEntityID(final String entityID) {
+            this.entityID = entityID;
+            return this;
+        }
+
+        /**
+         * @param samplingKeySource
+         *     supplies the key sampling decisions are derived from, see {@link ConsistentSampler} ;
+         *     Default: none, metrics are sampled at random
+         */
+        public Builder withSamplingKeySource(final SamplingKeySource samplingKeySource) {
+            this.samplingKeySource = samplingKeySource;
+            return this;
+        }
+
+        /**
+         * Limits the rate at which each metric context, i.e. aspect and tags, is submitted. Metrics over
+         * the limit are dropped before being formatted; for counters, histograms, distributions and timers,
+         * the number dropped is folded into the sample rate of the next metric sent for the same context,
+         * gauges and sets being sent without a rate. Events and service checks are not limited.
+         *
+         * @param permitsPerSecond
+         *     the sustained number of submissions allowed per second and context ; Default: unlimited
+         * @param burst
+         *     the number of submissions allowed at once per context, above the sustained rate
+         */
+        public Builder withRateLimit(final double permitsPerSecond, final int burst) {
+            this.rateLimitPerSecond = permitsPerSecond;
+            this.rateLimitBurst = burst;
+            return this;
+        }
+
+        /**
+         * @param rateLimitedContexts
+         *     the maximum number of contexts tracked by the rate limiter, further contexts are not limited ;
+         *     Default: 10000
+         */
+        public Builder withRateLimitedContexts(final int rateLimitedContexts) {
+            this.rateLimitedContexts = rateLimitedContexts;
+            return this;
+        }
+
+        /**
+         * @param monotonicCountContexts
+         *     the maximum number of contexts whose last total is kept for {@link NonBlockingStatsDClient#monotonicCount}, the totals
+         *     of further contexts being ignored; when aggregating, contexts idle for three flush intervals are
+         *     forgotten ; Default: 10000
+         */
+        public Builder withMonotonicCountContexts(final int monotonicCountContexts) {
+            this.monotonicCountContexts = monotonicCountContexts;
+            return this;
+        }
+
+        /**
+         * @param timerSummaryContexts
+         *     the maximum number of contexts rolled up into a {@link TimerSummary}, the times of further contexts
+         *     being sent as plain timers; contexts idle for three flush intervals are forgotten ; Default: 1000
+         */
+        public Builder withTimerSummaryContexts(final int timerSummaryContexts) {
+            this.timerSummaryContexts = timerSummaryContexts;
+            return this;
+        }
+
+        /**
+         * @param aggregationFlushIntervalMs
+         *     the interval at which aggregated metrics, such as the deltas of {@link NonBlockingStatsDClient#monotonicCount}, are sent ;
+         *     Default: 0, monotonic counts are sent as they are recorded and timer summaries every 10 seconds
+         */
+        public Builder withAggregationFlushInterval(final long aggregationFlushIntervalMs) {
+            this.aggregationFlushIntervalMs = aggregationFlushIntervalMs;
+            return this;
+        }
+
+        /**
+         * @param gaugePollingIntervalMs
+         *     the interval at which gauges registered without an interval are polled ; Default: 10000
+         */
+        public Builder withGaugePollingInterval(final long gaugePollingIntervalMs) {
+            this.gaugePollingIntervalMs = gaugePollingIntervalMs;
+            return this;
+        }
+
+        /**
+         * @param aspects
+         *     names of the timed operations whose execution times are rolled up into a {@link TimerSummary}
+         *     instead of being sent one by one ; Default: none
+         */
+        public Builder withTimerSummaries(final String... aspects) {
+            this.summarizedTimers = new HashSet<String>(Arrays.asList(aspects));
+            return this;
+        }
+
+        /**
+         * @param connectedChannel
+         *     true to connect the UDP channel to the StatsD server, and only look its address up again once
+         *     per address refresh interval instead of for every message ; Default: false
+         */
+        public Builder withConnectedChannel(final boolean connectedChannel) {
+            this.connectedChannel = connectedChannel;
+            return this;
+        }
+
+        /**
+         * @param addressRefreshIntervalMs
+         *     the interval at which the address of a connected channel is looked up again, the channel
+         *     being reconnected if it changed ; Default: 30000
+         */
+        public Builder withAddressRefreshInterval(final long addressRefreshIntervalMs) {
+            this.addressRefreshIntervalMs = addressRefreshIntervalMs;
+            return this;
+        }
+
+        /**
+         * @param addressResolutionTtlMs
+         *     resolve the host name in the background when the client starts, then again at this interval,
+         *     instead of only resolving it once as the client starts ; the messages are held until the first
+         *     resolution completes ; Default: 0, resolved once
+         */
+        public Builder withAddressResolutionTtl(final long addressResolutionTtlMs) {
+            this.addressResolutionTtlMs = addressResolutionTtlMs;
+            return this;
+        }
+
+        /**
+         * @param directBuffer
+         *     true to build packets in a page-aligned direct buffer, which the kernel reads from without the
+         *     JDK first copying it into a temporary direct buffer on every send ; Default: false
+         */
+        public Builder withDirectBuffer(final boolean directBuffer) {
+            this.directBuffer = directBuffer;
+            return this;
+        }
+
+        /**
+         * @param batchSize
+         *     on 64-bit Linux, the number of UDP packets queued and sent together with a single sendmmsg
+         *     call, instead of one send call per packet; packets are sent one by one elsewhere, or through
+         *     unix sockets ; Default: 0, no batching
+         */
+        public Builder withBatchSize(final int batchSize) {
+            this.batchSize = batchSize;
+            return this;
+        }
+
+        /**
+         * @param segmentationOffload
+         *     true to let the kernel split runs of batched packets of the same size with UDP generic
+         *     segmentation offload, where supported, falling back to one datagram per packet ; Default: false
+         */
+        public Builder withSegmentationOffload(final boolean segmentationOffload) {
+            this.segmentationOffload = segmentationOffload;
+            return this;
+        }
+
+        /**
+         * @param unixStream
+         *     true to send to a unix socket in stream mode, framing each packet by its length and writing
+         *     packets in batches of up to 64 KiB, reconnecting as needed ; Default: false, datagram mode
+         */
+        public Builder withUnixStream(final boolean unixStream) {
+            this.unixStream = unixStream;
+            return this;
+        }
+
+        /**
+         * @param outboundBufferBytes
+         *     the size of the buffer of data kept while a TCP connection, selected with a {@code tcp://} host
+         *     name, is down, the oldest data being dropped beyond that ; Default: 1048576
+         */
+        public Builder withOutboundBufferSize(final int outboundBufferBytes) {
+            this.outboundBufferBytes = outboundBufferBytes;
+            return this;
+        }
+
+        /**
+         * @param nonBlocking
+         *     on 64-bit Linux, true to send through unix sockets without blocking when the agent lags behind,
+         *     holding the packets it cannot take in the retry buffer, instead of waiting up to the timeout for
+         *     each packet; over UDP, true to drop the packets the send buffer cannot take instead of waiting for
+         *     room, counted in {@link NonBlockingStatsDClient#getFailedSendCount()} ; Default: false
+         */
+        public Builder withNonBlocking(final boolean nonBlocking) {
+            this.nonBlocking = nonBlocking;
+            return this;
+        }
+
+        /**
+         * @param retryBufferPackets
+         *     the number of packets held while the socket is not writable in non-blocking mode, the oldest
+         *     being dropped beyond that ; Default: 64
+         */
+        public Builder withRetryBufferSize(final int retryBufferPackets) {
+            this.retryBufferPackets = retryBufferPackets;
+            return this;
+        }
+
+        /**
+         * @param retryMaxAgeMs
+         *     the time after which a packet held in non-blocking mode is dropped ; Default: 1000
+         */
+        public Builder withRetryMaxAge(final long retryMaxAgeMs) {
+            this.retryMaxAgeMs = retryMaxAgeMs;
+            return this;
+        }
+
+        /**
+         * @param trafficClass
+         *     the type of service byte of the UDP packets, or their traffic class over IPv6, for instance a DSCP
+         *     value shifted left by two bits to prioritize metrics on the network ; Default: 0, the system default
+         */
+        public Builder withTrafficClass(final int trafficClass) {
+            this.trafficClass = trafficClass;
+            return this;
+        }
+
+        /**
+         * @param consecutiveFailures
+         *     the number of consecutive failed sends after which sending is suspended, for instance while no
+         *     agent listens, metrics being dropped before they are formatted until a single packet is sent again,
+         *     and counted in {@link NonBlockingStatsDClient#getDroppedMessageCount()}; attempts are made after 100 ms, then after twice as long each time, up to 30 s ; Default: 0, sends
+         *     are never suspended
+         */
+        public Builder withCircuitBreaker(final int consecutiveFailures) {
+            this.circuitBreakerFailures = consecutiveFailures;
+            return this;
+        }
+
+        /**
+         * @param spoolFile
+         *     a file to keep the packets in while the StatsD server cannot be reached, for instance while the
+         *     agent restarts, mapped in memory rather than held in the heap, and replayed once the server is
+         *     back; the file is truncated when the client starts and deleted when it stops ; Default: none
+         */
+        public Builder withSpoolFile(final File spoolFile) {
+            this.spoolFile = spoolFile;
+            return this;
+        }
+
+        /**
+         * @param spoolBytes
+         *     the size of the spool file, the oldest packets being dropped beyond that ; Default: 67108864
+         */
+        public Builder withSpoolSize(final int spoolBytes) {
+            this.spoolBytes = spoolBytes;
+            return this;
+        }
+
+        /**
+         * @param spoolReplayRate
+         *     the number of spooled packets sent per second once the StatsD server is back, so as not to
+         *     flood it after an outage ; Default: 10000
+         */
+        public Builder withSpoolReplayRate(final int spoolReplayRate) {
+            this.spoolReplayRate = spoolReplayRate;
+            return this;
+        }
+
+        /**
+         * @param probePacketSize
+         *     true to find, when the client starts, the largest packet the path to the server accepts: the MTU of
+         *     the interface routing to the server, or the send buffer of a unix socket, at most the maximum packet
+         *     size if set, or 8192 ; Default: false
+         */
+        public Builder withPacketSizeProbe(final boolean probePacketSize) {
+            this.probePacketSize = probePacketSize;
+            return this;
+        }
+
+        /**
+         * @param shutdownTimeoutMs
+         *     the time {@link NonBlockingStatsDClient#stop()} sends the messages queued for, the ones left then
+         *     being dropped ; Default: 30000
+         */
+        public Builder withShutdownTimeout(final long shutdownTimeoutMs) {
+            this.shutdownTimeoutMs = shutdownTimeoutMs;
+            return this;
+        }
+
+        /**
+         * @param lazyStart
+         *     true to look up the server, open the channel and start the sender thread, and the timer flushing
+         *     the aggregates if any, on the first metric sent rather than when the client is built, on the sender
+         *     thread itself; up to 128 metrics sent
+         *     meanwhile are held, the next ones being dropped. Failures to start are reported to the error
+         *     handler rather than thrown, and starting is attempted again on the next metric, a second later at
+         *     the earliest. The builder must not be changed once the client is built ; Default: false
+         */
+        public Builder withLazyStart(final boolean lazyStart) {
+            this.lazyStart = lazyStart;
+            return this;
+        }
+
+        /**
+         * @param transport
+         *     the transport to send the packets through, closed when the client stops, in place of the one
+         *     picked from the address of the server and the other settings ; Default: none
+         */
+        public Builder withTransport(final Transport transport) {
+            this.transport = transport;
+            return this;
+        }
+
+        private Callable<SocketAddress> resolveAddressLookup(final StatsDClientErrorHandler handler) throws StatsDClientException {
+            if (addressLookup != null) {
+                return addressLookup;
+            }
+            if (addressResolutionTtlMs > 0) {
+                return refreshingStatsDAddressResolution(hostname, port, addressResolutionTtlMs, handler);
+            }
+            return staticStatsDAddressResolution(hostname, port);
+        }
+    }
 }
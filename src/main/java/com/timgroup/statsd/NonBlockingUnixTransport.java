@@ -0,0 +1,230 @@
+package com.timgroup.statsd;
+
+import jnr.unixsocket.UnixSocketAddress;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends packets through a non-blocking unix datagram socket, on Linux only.
+ *
+ * <p>When the receive buffer of the agent is full, the kernel returns {@code EAGAIN} instead of
+ * blocking the sender thread. Such packets, and the packets written after them, are held in a
+ * bounded ring in the order they came in, and sent again once {@code poll(2)} reports the socket
+ * writable. The oldest packet is dropped when the ring is full, as is any packet held longer than
+ * the maximum age.</p>
+ *
+ * <p>The socket is connected to the agent, unlike the channel of jnr-unixsocket, so that the
+ * kernel reports it writable only when the agent can take more packets.</p>
+ */
+final class NonBlockingUnixTransport implements Transport {
+    private static final Charset PATH_CHARSET = Charset.forName("UTF-8");
+    private static final int SOCKADDR_UN_SIZE = 110;
+    private static final int POLLFD_SIZE = 8;
+
+    private final StatsDClientErrorHandler handler;
+    private final int maxPacketSizeBytes;
+    private final long maxRetryAgeNanos;
+    private final ByteBuffer ring;
+    private final int[] lengths;
+    private final long[] heldSinceNanos;
+    private final ByteBuffer staging;
+    private final ByteBuffer pollfd = ByteBuffer.allocateDirect(POLLFD_SIZE).order(ByteOrder.nativeOrder());
+
+    private int fd = -1;
+    private SocketAddress connectedAddress;
+    private int head;
+    private int size;
+
+    private NonBlockingUnixTransport(final int retryCapacity, final int maxPacketSizeBytes, final long maxRetryAgeMs,
+                                     final StatsDClientErrorHandler handler) {
+        this.handler = handler;
+        this.maxPacketSizeBytes = maxPacketSizeBytes;
+        this.maxRetryAgeNanos = TimeUnit.MILLISECONDS.toNanos(maxRetryAgeMs);
+        ring = BufferPool.allocateAligned(retryCapacity * maxPacketSizeBytes);
+        lengths = new int[retryCapacity];
+        heldSinceNanos = new long[retryCapacity];
+        staging = ByteBuffer.allocateDirect(maxPacketSizeBytes);
+        // loads the library right away, so that a failure falls back to the blocking channel
+        NativeLibC.libc();
+    }
+
+    /**
+     * @return the transport, or null if it is not available on this platform
+     */
+    static NonBlockingUnixTransport open(final int retryCapacity, final int maxPacketSizeBytes, final long maxRetryAgeMs,
+                                         final StatsDClientErrorHandler handler) {
+        if (!NativeLibC.isSupported()) {
+            return null;
+        }
+        try {
+            return new NonBlockingUnixTransport(Math.max(1, retryCapacity), maxPacketSizeBytes, maxRetryAgeMs, handler);
+        } catch (final Throwable e) {
+            handler.handle(new IOException("Non-blocking unix sockets are not available, falling back to blocking sends", e));
+            return null;
+        }
+    }
+
+    /**
+     * Sends the packet right away, unless packets are already held, or the socket is not writable,
+     * in which case it is held as well.
+     */
+    @Override
+    public void write(final ByteBuffer packet, final SocketAddress address) throws IOException {
+        if (!address.equals(connectedAddress)) {
+            connect(address);
+        }
+        if (size > 0) {
+            flush();
+        }
+        if (size > 0 || !trySend(packet)) {
+            hold(packet);
+        }
+    }
+
+    @Override
+    public void write(final ByteBuffer[] packets, final int offset, final int length, final SocketAddress address) throws IOException {
+        for (int i = offset; i < offset + length; i++) {
+            write(packets[i], address);
+        }
+    }
+
+    /**
+     * Sends the packets held, in order, until the socket is no longer writable.
+     */
+    @Override
+    public void flush() throws IOException {
+        final long now = System.nanoTime();
+        while (size > 0 && now - heldSinceNanos[head] > maxRetryAgeNanos) {
+            drop("held for too long");
+        }
+        if (size == 0 || fd < 0 || !isWritable()) {
+            return;
+        }
+        while (size > 0) {
+            final ByteBuffer packet = slot(head);
+            packet.limit(packet.position() + lengths[head]);
+            if (!trySend(packet)) {
+                return;
+            }
+            head = (head + 1) % lengths.length;
+            size--;
+        }
+    }
+
+    @Override
+    public boolean hasPending() {
+        return size > 0;
+    }
+
+    @Override
+    public int getMaxPacketSizeBytes() {
+        return 0;
+    }
+
+    @Override
+    public boolean supportsBatching() {
+        return false;
+    }
+
+    /**
+     * @return false if the socket is not writable
+     */
+    private boolean trySend(final ByteBuffer packet) throws IOException {
+        final ByteBuffer buffer;
+        if (packet.isDirect()) {
+            buffer = packet.slice();
+        } else {
+            staging.clear();
+            staging.put(packet.duplicate());
+            buffer = staging;
+        }
+        while (true) {
+            if (NativeLibC.libc().send(fd, buffer, packet.remaining(), NativeLibC.MSG_DONTWAIT) >= 0) {
+                packet.position(packet.limit());
+                return true;
+            }
+            final int error = NativeLibC.errno();
+            if (error == NativeLibC.EAGAIN) {
+                return false;
+            }
+            if (error != NativeLibC.EINTR) {
+                packet.position(packet.limit());
+                // reconnects on the next write, in case the agent restarted
+                final SocketAddress address = connectedAddress;
+                close();
+                throw new IOException("Could not send stat to " + address + ": " + NativeLibC.strerror(error));
+            }
+        }
+    }
+
+    private boolean isWritable() {
+        pollfd.putInt(0, fd);
+        pollfd.putShort(4, (short) NativeLibC.POLLOUT);
+        pollfd.putShort(6, (short) 0);
+        return NativeLibC.libc().poll(pollfd, 1, 0) > 0 && (pollfd.getShort(6) & NativeLibC.POLLOUT) != 0;
+    }
+
+    private void hold(final ByteBuffer packet) {
+        if (size == lengths.length) {
+            drop("retry buffer full");
+        }
+        final int index = (head + size) % lengths.length;
+        lengths[index] = packet.remaining();
+        heldSinceNanos[index] = System.nanoTime();
+        slot(index).put(packet);
+        size++;
+    }
+
+    private void drop(final String reason) {
+        handler.handle(new IOException("Dropped a packet of " + lengths[head] + " bytes to " + connectedAddress + ": " + reason));
+        head = (head + 1) % lengths.length;
+        size--;
+    }
+
+    private ByteBuffer slot(final int index) {
+        ring.limit((index + 1) * maxPacketSizeBytes);
+        ring.position(index * maxPacketSizeBytes);
+        return ring.slice();
+    }
+
+    private void connect(final SocketAddress address) throws IOException {
+        if (!(address instanceof UnixSocketAddress)) {
+            throw new IOException("Cannot send through a unix socket to " + address);
+        }
+        close();
+        final byte[] path = ((UnixSocketAddress) address).path().getBytes(PATH_CHARSET);
+        if (path.length >= SOCKADDR_UN_SIZE - 2) {
+            throw new IOException("Socket path too long: " + address);
+        }
+        final ByteBuffer sockaddr = ByteBuffer.allocateDirect(SOCKADDR_UN_SIZE).order(ByteOrder.nativeOrder());
+        sockaddr.putShort((short) NativeLibC.AF_UNIX);
+        sockaddr.put(path);
+        fd = NativeLibC.libc().socket(NativeLibC.AF_UNIX, NativeLibC.SOCK_DGRAM, 0);
+        if (fd < 0) {
+            throw new IOException("Could not open socket: " + NativeLibC.strerror(NativeLibC.errno()));
+        }
+        if (NativeLibC.libc().connect(fd, sockaddr, 2 + path.length + 1) < 0) {
+            final int error = NativeLibC.errno();
+            close();
+            throw new IOException("Could not connect to " + address + ": " + NativeLibC.strerror(error));
+        }
+        connectedAddress = address;
+    }
+
+    /**
+     * Closes the socket, the packets held being sent to the next address.
+     */
+    @Override
+    public void close() {
+        if (fd >= 0) {
+            NativeLibC.libc().close(fd);
+            fd = -1;
+        }
+        connectedAddress = null;
+    }
+}
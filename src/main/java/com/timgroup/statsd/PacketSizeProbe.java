@@ -0,0 +1,59 @@
+package com.timgroup.statsd;
+
+import jnr.unixsocket.UnixSocketAddress;
+import jnr.unixsocket.UnixSocketOptions;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.Inet6Address;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Finds the largest datagram the path to the StatsD server accepts without fragmentation or
+ * errors: the MTU of the interface routing to the server, less the IP and UDP headers, or the send
+ * buffer of a unix socket, less the overhead the kernel accounts for each datagram.
+ */
+final class PacketSizeProbe {
+    private static final int IPV4_UDP_HEADERS_BYTES = 28;
+    private static final int IPV6_UDP_HEADERS_BYTES = 48;
+    private static final int MAX_UDP_PAYLOAD_BYTES = 65507;
+    private static final int UNIX_DATAGRAM_OVERHEAD_BYTES = 32;
+
+    private PacketSizeProbe() {}
+
+    /**
+     * @param channel
+     *     the channel the client sends through
+     * @param capBytes
+     *     the largest size returned
+     * @return the largest packet size the path accepts, at most the cap
+     * @throws IOException
+     *     if the path could not be probed
+     */
+    static int probe(final SocketAddress address, final DatagramChannel channel, final int capBytes) throws IOException {
+        if (address instanceof UnixSocketAddress) {
+            final int sendBufferBytes = channel.getOption(UnixSocketOptions.SO_SNDBUF);
+            return Math.min(capBytes, sendBufferBytes - UNIX_DATAGRAM_OVERHEAD_BYTES);
+        }
+        if (!(address instanceof InetSocketAddress) || ((InetSocketAddress) address).isUnresolved()) {
+            throw new IOException("Cannot probe the packet size to " + address);
+        }
+        final InetSocketAddress inetAddress = (InetSocketAddress) address;
+        // connecting a datagram socket sends nothing, but picks the route and local address
+        final DatagramSocket socket = new DatagramSocket();
+        try {
+            socket.connect(inetAddress);
+            final NetworkInterface networkInterface = NetworkInterface.getByInetAddress(socket.getLocalAddress());
+            if (networkInterface == null) {
+                throw new IOException("No interface found to " + address);
+            }
+            final int headersBytes = inetAddress.getAddress() instanceof Inet6Address ? IPV6_UDP_HEADERS_BYTES : IPV4_UDP_HEADERS_BYTES;
+            return Math.min(capBytes, Math.min(MAX_UDP_PAYLOAD_BYTES, networkInterface.getMTU() - headersBytes));
+        } finally {
+            socket.close();
+        }
+    }
+}
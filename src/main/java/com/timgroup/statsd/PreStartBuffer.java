@@ -0,0 +1,76 @@
+package com.timgroup.statsd;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Holds the messages sent to a client started lazily until its sender is ready, in a fixed array.
+ *
+ * <p>Each message claims a slot with a single atomic increment, and the messages beyond the size of
+ * the array are dropped. Once drained, the buffer refuses messages, which then go to the sender. A
+ * thread may have claimed a slot without having filled it yet when the buffer is drained: draining
+ * waits for it, which takes no longer than a store.</p>
+ */
+final class PreStartBuffer {
+    static final int BUFFERED = 0;
+    static final int DROPPED = 1;
+    static final int DRAINED = 2;
+
+    private final AtomicReferenceArray<String> messages;
+    private final AtomicInteger claimed = new AtomicInteger();
+    private final AtomicLong droppedMessages = new AtomicLong();
+    private volatile boolean drained;
+
+    /**
+     * @param capacity
+     *     the number of messages held at most
+     */
+    PreStartBuffer(final int capacity) {
+        messages = new AtomicReferenceArray<String>(capacity);
+    }
+
+    /**
+     * @return {@link #BUFFERED}, {@link #DROPPED} if the buffer is full, or {@link #DRAINED} if the
+     *     buffer was drained, the message being left to the caller to send
+     */
+    int offer(final String message) {
+        if (drained) {
+            return DRAINED;
+        }
+        final int index = claimed.getAndIncrement();
+        if (index < messages.length()) {
+            messages.set(index, message);
+            return BUFFERED;
+        }
+        if (drained) {
+            return DRAINED;
+        }
+        droppedMessages.incrementAndGet();
+        return DROPPED;
+    }
+
+    /**
+     * Moves the messages held to the sender, in the order they were sent, and refuses the next ones.
+     */
+    void drainTo(final StatsDSender sender) {
+        drained = true;
+        // no slot can be claimed past this point
+        final int count = Math.min(claimed.getAndSet(messages.length()), messages.length());
+        for (int i = 0; i < count; i++) {
+            String message;
+            while ((message = messages.get(i)) == null) {
+                Thread.yield();
+            }
+            messages.set(i, null);
+            sender.send(message);
+        }
+    }
+
+    /**
+     * @return the number of messages dropped because the buffer was full
+     */
+    long getDroppedMessageCount() {
+        return droppedMessages.get();
+    }
+}
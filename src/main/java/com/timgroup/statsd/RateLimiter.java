@@ -0,0 +1,76 @@
+package com.timgroup.statsd;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caps the rate at which each metric context may be submitted, using one token bucket per context.
+ *
+ * <p>Contexts beyond {@code maxContexts} are not limited, so that a high cardinality of tags
+ * cannot grow the buckets without bound.</p>
+ */
+final class RateLimiter {
+
+    /**
+     * Returned by {@link #acquire} when the submission must be dropped.
+     */
+    static final int SUPPRESSED = -1;
+
+    private final double permitsPerNano;
+    private final double burst;
+    private final int maxContexts;
+    private final ConcurrentMap<ContextKey, Bucket> buckets = new ConcurrentHashMap<ContextKey, Bucket>();
+
+    RateLimiter(final double permitsPerSecond, final int burst, final int maxContexts) {
+        this.permitsPerNano = permitsPerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.burst = Math.max(1, burst);
+        this.maxContexts = maxContexts;
+    }
+
+    /**
+     * @return {@link #SUPPRESSED} if the context is over its rate, else the number of submissions
+     *     suppressed since the previous one allowed for this context
+     */
+    int acquire(final String aspect, final String[] tags) {
+        final ContextKey key = new ContextKey(aspect, tags);
+        Bucket bucket = buckets.get(key);
+        if (bucket == null) {
+            if (buckets.size() >= maxContexts) {
+                return 0;
+            }
+            final Bucket created = new Bucket(burst, System.nanoTime());
+            bucket = buckets.putIfAbsent(key.copy(), created);
+            if (bucket == null) {
+                bucket = created;
+            }
+        }
+        return bucket.acquire(System.nanoTime());
+    }
+
+    private final class Bucket {
+        private double tokens;
+        private long lastRefillNanos;
+        private int suppressed;
+
+        Bucket(final double tokens, final long nowNanos) {
+            this.tokens = tokens;
+            this.lastRefillNanos = nowNanos;
+        }
+
+        synchronized int acquire(final long nowNanos) {
+            tokens = Math.min(burst, tokens + (nowNanos - lastRefillNanos) * permitsPerNano);
+            lastRefillNanos = nowNanos;
+            if (tokens < 1) {
+                if (suppressed < Integer.MAX_VALUE - 1) {
+                    suppressed++;
+                }
+                return SUPPRESSED;
+            }
+            tokens -= 1;
+            final int result = suppressed;
+            suppressed = 0;
+            return result;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.timgroup.statsd;
+
+import java.io.Closeable;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caches the address of the StatsD server, and refreshes it in the background once per time to live.
+ *
+ * <p>The address is only resolved in the background, first right away then once per time to live, so
+ * that creating the lookup never blocks. Until the first resolution completes, lookups wait for it:
+ * the sender holds its messages meanwhile. A failed refresh keeps the last address resolved.</p>
+ *
+ * <p>Note that the JVM caches successful lookups itself, for 30 seconds by default, see the
+ * {@code networkaddress.cache.ttl} security property.</p>
+ */
+final class RefreshingAddressResolution implements Callable<SocketAddress>, Closeable {
+
+    /**
+     * Resolutions of all the clients run on a single daemon thread, only started when needed.
+     */
+    private static final class Resolver {
+        static final ScheduledExecutorService EXECUTOR = Executors.newSingleThreadScheduledExecutor(NonBlockingStatsDClient.THREAD_FACTORY);
+    }
+
+    /**
+     * The longest a lookup waits for the first resolution, beyond the usual timeouts of the system
+     * resolver.
+     */
+    static final long FIRST_RESOLUTION_TIMEOUT_MS = 10000;
+
+    private final String hostname;
+    private final int port;
+    private volatile StatsDClientErrorHandler handler;
+    private final ScheduledFuture<?> refresh;
+    private final CountDownLatch firstResolution = new CountDownLatch(1);
+    private volatile SocketAddress address;
+    private volatile Exception firstFailure;
+
+    RefreshingAddressResolution(final String hostname, final int port, final long ttlMs, final StatsDClientErrorHandler handler) {
+        this.hostname = hostname;
+        this.port = port;
+        this.handler = handler;
+        final long intervalMs = Math.max(1, ttlMs);
+        this.refresh = Resolver.EXECUTOR.scheduleWithFixedDelay(new Runnable() {
+            @Override public void run() {
+                resolve();
+            }
+        }, 0, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Reports the failed refreshes to the handler, unless a handler was given already.
+     */
+    void reportErrorsTo(final StatsDClientErrorHandler handler) {
+        if (this.handler == null) {
+            this.handler = handler;
+        }
+    }
+
+    private SocketAddress lookup() throws UnknownHostException {
+        return TcpSocketAddress.hasScheme(hostname)
+                ? TcpSocketAddress.parse(hostname, port, true)
+                : new InetSocketAddress(InetAddress.getByName(hostname), port);
+    }
+
+    private void resolve() {
+        try {
+            address = lookup();
+        } catch (final Exception e) {
+            if (address == null) {
+                firstFailure = e;
+            }
+            final StatsDClientErrorHandler current = handler;
+            if (current != null) {
+                current.handle(e);
+            }
+        } finally {
+            firstResolution.countDown();
+        }
+    }
+
+    /**
+     * @return the last address resolved, once the first resolution completed
+     * @throws Exception
+     *     if no address was resolved yet, i.e. the error of the first resolution
+     */
+    @Override
+    public SocketAddress call() throws Exception {
+        final SocketAddress current = address;
+        if (current != null) {
+            return current;
+        }
+        if (!firstResolution.await(FIRST_RESOLUTION_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+            throw new UnknownHostException(hostname + ": still resolving");
+        }
+        final SocketAddress resolved = address;
+        if (resolved == null) {
+            final Exception failure = firstFailure;
+            throw failure != null ? failure : new UnknownHostException(hostname + ": lookup closed");
+        }
+        return resolved;
+    }
+
+    /**
+     * @return the last address resolved, or an unresolved address of the same kind if none was yet,
+     *     without waiting
+     */
+    SocketAddress peek() throws UnknownHostException {
+        final SocketAddress current = address;
+        if (current != null) {
+            return current;
+        }
+        return TcpSocketAddress.hasScheme(hostname)
+                ? TcpSocketAddress.parse(hostname, port, false)
+                : InetSocketAddress.createUnresolved(hostname, port);
+    }
+
+    /**
+     * Stops refreshing the address. Lookups still waiting for the first resolution fail.
+     */
+    @Override
+    public void close() {
+        refresh.cancel(false);
+        firstResolution.countDown();
+    }
+
+    boolean isClosed() {
+        return refresh.isCancelled();
+    }
+}
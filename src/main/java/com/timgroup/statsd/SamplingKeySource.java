@@ -0,0 +1,17 @@
+package com.timgroup.statsd;
+
+/**
+ * Supplies the key used to sample metrics submitted with a sample rate, in place of a random draw.
+ *
+ * <p>The key usually identifies the request being processed by the calling thread, such as the
+ * ID of the active trace. All the metrics submitted for the same key are then either all kept or
+ * all dropped, and callers can take the same decision up front with
+ * {@link ConsistentSampler#isSampled(long, double)}.</p>
+ */
+public interface SamplingKeySource {
+
+    /**
+     * @return the sampling key of the current unit of work
+     */
+    long samplingKey();
+}
@@ -0,0 +1,321 @@
+package com.timgroup.statsd;
+
+import com.kenai.jffi.MemoryIO;
+import jnr.ffi.Memory;
+import jnr.ffi.Pointer;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Sends UDP packets in batches, queueing completed packets and submitting them all with a single
+ * {@code sendmmsg(2)} call, on Linux only.
+ *
+ * <p>The transport uses its own native socket, connected to the StatsD server, and reconnects it
+ * when the address looked up changes. When UDP generic segmentation offload is enabled and the
+ * kernel supports it, runs of consecutive packets of the same size, the last one excepted, are
+ * moreover handed to the kernel as a single datagram to be split with {@code UDP_SEGMENT}; if the
+ * kernel or the interface rejects it, segmentation is turned off and the packets are sent again
+ * one by one.</p>
+ *
+ * <p>In non-blocking mode, the packets the socket buffer cannot take are dropped rather than
+ * waited for, and reported as a failed send.</p>
+ */
+final class SendmmsgTransport implements Transport {
+    /**
+     * Layout of the structures on 64-bit Linux.
+     */
+    private static final int IOVEC_SIZE = 16;
+    private static final int MSGHDR_MSG_IOV = 16;
+    private static final int MSGHDR_MSG_IOVLEN = 24;
+    private static final int MSGHDR_MSG_CONTROL = 32;
+    private static final int MSGHDR_MSG_CONTROLLEN = 40;
+    private static final int MMSGHDR_SIZE = 64;
+    private static final int CMSG_DATA = 16;
+    private static final int CMSG_LEN = CMSG_DATA + 2;
+    private static final int CMSG_SPACE = CMSG_DATA + 8;
+
+    /**
+     * Limits of the kernel on the segments of a single datagram.
+     */
+    private static final int MAX_SEGMENTS = 64;
+    private static final int MAX_SEGMENTED_BYTES = 65000;
+
+    private final int maxPacketSizeBytes;
+    private final int batchSize;
+    private final ByteBuffer data;
+    private final long dataAddress;
+    private final int[] lengths;
+    private final int[] firstPackets;
+    private final Pointer iovecs;
+    private final Pointer messages;
+    private final Pointer controls;
+    private final UdpOptions options;
+    private final int sendFlags;
+
+    private boolean segmentation;
+    private int fd = -1;
+    private int family;
+    private SocketAddress connectedAddress;
+    private int count;
+
+    private SendmmsgTransport(final int batchSize, final int maxPacketSizeBytes, final boolean segmentation,
+                              final UdpOptions options) {
+        this.batchSize = batchSize;
+        this.options = options;
+        sendFlags = options.isNonBlocking() ? NativeLibC.MSG_DONTWAIT : 0;
+        this.maxPacketSizeBytes = maxPacketSizeBytes;
+        this.segmentation = segmentation;
+        data = BufferPool.allocateAligned(batchSize * maxPacketSizeBytes);
+        dataAddress = MemoryIO.getInstance().getDirectBufferAddress(data);
+        lengths = new int[batchSize];
+        firstPackets = new int[batchSize];
+        iovecs = Memory.allocateDirect(NativeLibC.runtime(), batchSize * IOVEC_SIZE, true);
+        messages = Memory.allocateDirect(NativeLibC.runtime(), batchSize * MMSGHDR_SIZE, true);
+        controls = Memory.allocateDirect(NativeLibC.runtime(), batchSize * CMSG_SPACE, true);
+        for (int i = 0; i < batchSize; i++) {
+            iovecs.putAddress(i * IOVEC_SIZE, dataAddress + (long) i * maxPacketSizeBytes);
+            controls.putLong(i * CMSG_SPACE, CMSG_LEN);
+            controls.putInt(i * CMSG_SPACE + 8, NativeLibC.SOL_UDP);
+            controls.putInt(i * CMSG_SPACE + 12, NativeLibC.UDP_SEGMENT);
+        }
+    }
+
+    /**
+     * @param segmentation
+     *     true to use UDP generic segmentation offload if the kernel supports it
+     * @param options
+     *     the options of the socket
+     * @return the transport, or null if sendmmsg is not available on this platform
+     */
+    static SendmmsgTransport open(final int batchSize, final int maxPacketSizeBytes, final boolean segmentation,
+                                  final UdpOptions options, final StatsDClientErrorHandler handler) {
+        if (!NativeLibC.isSupported()) {
+            return null;
+        }
+        try {
+            return new SendmmsgTransport(Math.max(1, batchSize), maxPacketSizeBytes, segmentation, options);
+        } catch (final Throwable e) {
+            handler.handle(new IOException("sendmmsg is not available, falling back to sending packets one by one", e));
+            return null;
+        }
+    }
+
+    boolean isSegmentationEnabled() {
+        return segmentation;
+    }
+
+    /**
+     * Queues a copy of the packet, sending the batch first if it is full or the address changed.
+     */
+    @Override
+    public void write(final ByteBuffer packet, final SocketAddress address) throws IOException {
+        if (!address.equals(connectedAddress)) {
+            flush();
+            connect(address);
+        }
+        if (count == batchSize) {
+            flush();
+        }
+        lengths[count] = packet.remaining();
+        data.limit((count + 1) * maxPacketSizeBytes);
+        data.position(count * maxPacketSizeBytes);
+        data.put(packet);
+        count++;
+    }
+
+    @Override
+    public void write(final ByteBuffer[] packets, final int offset, final int length, final SocketAddress address) throws IOException {
+        for (int i = offset; i < offset + length; i++) {
+            write(packets[i], address);
+        }
+    }
+
+    /**
+     * Sends the packets queued, with as few calls as the kernel allows.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (count == 0) {
+            return;
+        }
+        try {
+            send(0);
+        } finally {
+            count = 0;
+        }
+    }
+
+    /**
+     * @return false, the sender flushing the batch whenever its queue runs empty
+     */
+    @Override
+    public boolean hasPending() {
+        return false;
+    }
+
+    @Override
+    public int getMaxPacketSizeBytes() {
+        return 0;
+    }
+
+    @Override
+    public boolean supportsBatching() {
+        return true;
+    }
+
+    private void send(final int firstPacket) throws IOException {
+        final int messageCount = prepare(firstPacket);
+        int sent = 0;
+        while (sent < messageCount) {
+            final int result = NativeLibC.libc().sendmmsg(fd, messages.slice((long) sent * MMSGHDR_SIZE), messageCount - sent, sendFlags);
+            if (result >= 0) {
+                sent += result;
+                continue;
+            }
+            final int error = NativeLibC.errno();
+            if (error == NativeLibC.EINTR) {
+                continue;
+            }
+            if (segmentation && (error == NativeLibC.EIO || error == NativeLibC.EINVAL)) {
+                segmentation = false;
+                send(firstPackets[sent]);
+                return;
+            }
+            if (error == NativeLibC.EAGAIN) {
+                throw new IOException("Dropped " + (count - firstPackets[sent]) + " packets to " + connectedAddress
+                        + ": socket buffer full");
+            }
+            throw new IOException("Could not send " + (count - firstPackets[sent]) + " packets to "
+                    + connectedAddress + ": " + NativeLibC.strerror(error));
+        }
+    }
+
+    /**
+     * Fills one message per packet, or per run of packets to segment, from the given packet on.
+     *
+     * @return the number of messages
+     */
+    private int prepare(final int firstPacket) {
+        int messageCount = 0;
+        int packet = firstPacket;
+        while (packet < count) {
+            final int first = packet;
+            final int segmentSize = lengths[packet];
+            long bytes = segmentSize;
+            packet++;
+            if (segmentation) {
+                while (packet < count && lengths[packet - 1] == segmentSize && lengths[packet] <= segmentSize
+                        && packet - first < MAX_SEGMENTS && bytes + lengths[packet] <= MAX_SEGMENTED_BYTES) {
+                    bytes += lengths[packet];
+                    packet++;
+                }
+            }
+            for (int i = first; i < packet; i++) {
+                iovecs.putLong((long) i * IOVEC_SIZE + 8, lengths[i]);
+            }
+            final long message = (long) messageCount * MMSGHDR_SIZE;
+            messages.putAddress(message + MSGHDR_MSG_IOV, iovecs.address() + (long) first * IOVEC_SIZE);
+            messages.putLong(message + MSGHDR_MSG_IOVLEN, packet - first);
+            if (packet - first > 1) {
+                final long control = (long) messageCount * CMSG_SPACE;
+                controls.putShort(control + CMSG_DATA, (short) segmentSize);
+                messages.putAddress(message + MSGHDR_MSG_CONTROL, controls.address() + control);
+                messages.putLong(message + MSGHDR_MSG_CONTROLLEN, CMSG_SPACE);
+            } else {
+                messages.putAddress(message + MSGHDR_MSG_CONTROL, 0L);
+                messages.putLong(message + MSGHDR_MSG_CONTROLLEN, 0L);
+            }
+            firstPackets[messageCount] = first;
+            messageCount++;
+        }
+        return messageCount;
+    }
+
+    private void connect(final SocketAddress address) throws IOException {
+        if (!(address instanceof InetSocketAddress) || ((InetSocketAddress) address).isUnresolved()) {
+            throw new IOException("Cannot send with sendmmsg to " + address);
+        }
+        final InetSocketAddress inetAddress = (InetSocketAddress) address;
+        final ByteBuffer sockaddr = sockaddr(inetAddress.getAddress(), inetAddress.getPort());
+        final int addressFamily = sockaddr.getShort(0);
+        if (fd < 0 || family != addressFamily) {
+            close();
+            fd = NativeLibC.libc().socket(addressFamily, NativeLibC.SOCK_DGRAM, 0);
+            if (fd < 0) {
+                throw new IOException("Could not open socket: " + NativeLibC.strerror(NativeLibC.errno()));
+            }
+            configure(addressFamily);
+            family = addressFamily;
+            if (segmentation && !supportsSegmentation()) {
+                segmentation = false;
+            }
+        }
+        if (NativeLibC.libc().connect(fd, sockaddr, sockaddr.capacity()) < 0) {
+            connectedAddress = null;
+            throw new IOException("Could not connect to " + address + ": " + NativeLibC.strerror(NativeLibC.errno()));
+        }
+        connectedAddress = address;
+    }
+
+    private void configure(final int addressFamily) throws IOException {
+        if (options.getSendBufferBytes() > 0
+                && !NativeLibC.setIntOption(fd, NativeLibC.SOL_SOCKET, NativeLibC.SO_SNDBUF, options.getSendBufferBytes())) {
+            throw new IOException("Could not set the send buffer size: " + NativeLibC.strerror(NativeLibC.errno()));
+        }
+        if (options.getTrafficClass() > 0) {
+            final boolean set = addressFamily == NativeLibC.AF_INET
+                    ? NativeLibC.setIntOption(fd, NativeLibC.IPPROTO_IP, NativeLibC.IP_TOS, options.getTrafficClass())
+                    : NativeLibC.setIntOption(fd, NativeLibC.IPPROTO_IPV6, NativeLibC.IPV6_TCLASS, options.getTrafficClass());
+            if (!set) {
+                throw new IOException("Could not set the traffic class: " + NativeLibC.strerror(NativeLibC.errno()));
+            }
+        }
+    }
+
+    private boolean supportsSegmentation() {
+        final ByteBuffer value = ByteBuffer.allocateDirect(4).order(ByteOrder.nativeOrder());
+        final ByteBuffer length = ByteBuffer.allocateDirect(4).order(ByteOrder.nativeOrder());
+        length.putInt(0, 4);
+        return NativeLibC.libc().getsockopt(fd, NativeLibC.SOL_UDP, NativeLibC.UDP_SEGMENT, value, length) == 0;
+    }
+
+    /**
+     * @return a {@code sockaddr_in} or {@code sockaddr_in6} structure
+     */
+    private static ByteBuffer sockaddr(final InetAddress address, final int port) {
+        final byte[] bytes = address.getAddress();
+        final ByteBuffer sockaddr;
+        if (address instanceof Inet4Address) {
+            sockaddr = ByteBuffer.allocateDirect(16).order(ByteOrder.nativeOrder());
+            sockaddr.putShort(0, (short) NativeLibC.AF_INET);
+            sockaddr.position(4);
+        } else {
+            sockaddr = ByteBuffer.allocateDirect(28).order(ByteOrder.nativeOrder());
+            sockaddr.putShort(0, (short) NativeLibC.AF_INET6);
+            sockaddr.putInt(24, ((Inet6Address) address).getScopeId());
+            sockaddr.position(8);
+        }
+        // the port is in network byte order
+        sockaddr.put(2, (byte) (port >>> 8));
+        sockaddr.put(3, (byte) port);
+        sockaddr.put(bytes);
+        sockaddr.clear();
+        return sockaddr;
+    }
+
+    @Override
+    public void close() {
+        if (fd >= 0) {
+            NativeLibC.libc().close(fd);
+            fd = -1;
+            connectedAddress = null;
+        }
+    }
+}
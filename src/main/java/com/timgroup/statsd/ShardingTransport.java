@@ -0,0 +1,347 @@
+package com.timgroup.statsd;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * Spreads metrics over several StatsD servers, for instance agents listening on different ports
+ * when a single one cannot keep up, sending every message of a context, that is of a metric name
+ * and tags, to the same server so that it is aggregated in a single place.
+ *
+ * <p>Servers are placed on a ring of hashes, at many points each, and a context goes to the first
+ * server following its hash on the ring. Adding or removing a server thus only moves the contexts
+ * between the points of that server and the points preceding them, about one in the number of
+ * servers. Events and service checks are placed by their whole message.</p>
+ *
+ * <p>The packets built by the client are split into messages, which are packed again into one
+ * packet per server, and written to the transport of that server when full or when the client
+ * flushes. Transports are written to from the sender thread of the client, so a server that blocks
+ * holds back the others; non-blocking transports, such as UDP, suit them best.</p>
+ *
+ * <pre>
+ * Transport sharding = new ShardingTransport(8192)
+ *     .addShard("agent-1", DatagramTransport.udp(), NonBlockingStatsDClient.staticAddressResolution("localhost", 8125))
+ *     .addShard("agent-2", DatagramTransport.udp(), NonBlockingStatsDClient.staticAddressResolution("localhost", 8126));
+ * </pre>
+ *
+ * <p>Servers may be added and removed while the client runs. The address looked up by the client
+ * is not used: each server is sent to at its own address.</p>
+ */
+public final class ShardingTransport implements Transport {
+    private static final Charset MESSAGE_CHARSET = Charset.forName("UTF-8");
+    private static final int POINTS_PER_SHARD = 160;
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final int packetSizeBytes;
+    private final Map<String, Shard> shards = new LinkedHashMap<String, Shard>();
+    private volatile Ring ring = new Ring(Collections.<Shard>emptyList());
+    private Ring appliedRing = ring;
+    private final List<Shard> removedShards = new ArrayList<Shard>();
+
+    /**
+     * @param packetSizeBytes
+     *     the size of the packets sent to each server, which is also the largest packet the client builds
+     */
+    public ShardingTransport(final int packetSizeBytes) {
+        this.packetSizeBytes = packetSizeBytes;
+    }
+
+    /**
+     * Adds a server, or replaces the one of the same name.
+     *
+     * @param name
+     *     the name of the server, which alone places it on the ring, so that contexts keep going to
+     *     the same servers across restarts and address changes
+     * @param transport
+     *     the transport to the server, closed when the server is removed or with this transport
+     * @param addressLookup
+     *     yields the address of the server, called for every packet
+     * @return this transport
+     */
+    public synchronized ShardingTransport addShard(final String name, final Transport transport,
+                                                   final Callable<SocketAddress> addressLookup) {
+        final Shard replaced = shards.put(name, new Shard(name, transport, addressLookup, packetSizeBytes));
+        if (replaced != null) {
+            removedShards.add(replaced);
+        }
+        ring = new Ring(new ArrayList<Shard>(shards.values()));
+        return this;
+    }
+
+    /**
+     * Removes a server, whose contexts are spread over the others. The packets held for it are sent
+     * and its transport closed by the sender thread.
+     *
+     * @param name
+     *     the name of the server
+     * @return this transport
+     */
+    public synchronized ShardingTransport removeShard(final String name) {
+        final Shard removed = shards.remove(name);
+        if (removed != null) {
+            removedShards.add(removed);
+            ring = new Ring(new ArrayList<Shard>(shards.values()));
+        }
+        return this;
+    }
+
+    /**
+     * Adds each message of the packet to the packet of its server.
+     */
+    @Override
+    public void write(final ByteBuffer packet, final SocketAddress address) throws IOException {
+        final Ring current = currentRing();
+        if (current.shards.length == 0) {
+            throw new IOException("No StatsD server to send to");
+        }
+        IOException failure = null;
+        int start = packet.position();
+        final int end = packet.limit();
+        for (int i = start; i <= end; i++) {
+            if (i == end || packet.get(i) == '\n') {
+                if (i > start) {
+                    try {
+                        current.shardOf(packet, start, i).append(packet, start, i);
+                    } catch (final IOException e) {
+                        failure = failure == null ? e : failure;
+                    }
+                }
+                start = i + 1;
+            }
+        }
+        packet.position(end);
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    @Override
+    public void write(final ByteBuffer[] packets, final int offset, final int length, final SocketAddress address) throws IOException {
+        for (int i = offset; i < offset + length; i++) {
+            write(packets[i], address);
+        }
+    }
+
+    /**
+     * Sends the packet of every server, then flushes their transports.
+     */
+    @Override
+    public void flush() throws IOException {
+        IOException failure = null;
+        for (final Shard shard : currentRing().shards) {
+            try {
+                shard.flush();
+            } catch (final IOException e) {
+                failure = failure == null ? e : failure;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    @Override
+    public boolean hasPending() {
+        for (final Shard shard : appliedRing.shards) {
+            if (shard.transport.hasPending()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public int getMaxPacketSizeBytes() {
+        return packetSizeBytes;
+    }
+
+    @Override
+    public boolean supportsBatching() {
+        return true;
+    }
+
+    @Override
+    public void close() {
+        try {
+            flush();
+        } catch (final IOException e) {
+            // nothing more can be sent either way
+        }
+        for (final Shard shard : appliedRing.shards) {
+            shard.transport.close();
+        }
+    }
+
+    /**
+     * @return the name of the server the context of the message goes to
+     */
+    String shardOf(final String message) {
+        final byte[] data = message.getBytes(MESSAGE_CHARSET);
+        return ring.shardOf(ByteBuffer.wrap(data), 0, data.length).name;
+    }
+
+    /**
+     * Switches to the last ring built, sending what is held for the servers removed since.
+     */
+    private Ring currentRing() {
+        final Ring current = ring;
+        if (current != appliedRing) {
+            final List<Shard> removed;
+            synchronized (this) {
+                removed = new ArrayList<Shard>(removedShards);
+                removedShards.clear();
+            }
+            for (final Shard shard : removed) {
+                try {
+                    shard.flush();
+                } catch (final IOException e) {
+                    // the server is gone
+                }
+                shard.transport.close();
+            }
+            appliedRing = current;
+        }
+        return current;
+    }
+
+    /**
+     * @return the hash of the metric name and tags of a message, or of the whole message for events
+     *     and service checks
+     */
+    private static long contextHash(final ByteBuffer packet, final int start, final int end) {
+        if (packet.get(start) == '_') {
+            return ConsistentSampler.mix(hash(FNV_OFFSET_BASIS, packet, start, end));
+        }
+        int nameEnd = start;
+        while (nameEnd < end && packet.get(nameEnd) != ':') {
+            nameEnd++;
+        }
+        long hash = hash(FNV_OFFSET_BASIS, packet, start, nameEnd);
+        for (int i = nameEnd; i + 1 < end; i++) {
+            if (packet.get(i) == '|' && packet.get(i + 1) == '#') {
+                int tagsEnd = i + 2;
+                while (tagsEnd < end && packet.get(tagsEnd) != '|') {
+                    tagsEnd++;
+                }
+                hash = hash(hash, packet, i + 2, tagsEnd);
+                break;
+            }
+        }
+        return ConsistentSampler.mix(hash);
+    }
+
+    /**
+     * FNV-1a.
+     */
+    private static long hash(long hash, final ByteBuffer packet, final int start, final int end) {
+        for (int i = start; i < end; i++) {
+            hash = (hash ^ (packet.get(i) & 0xff)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    private static final class Ring {
+        final Shard[] shards;
+        final long[] points;
+        final Shard[] owners;
+
+        Ring(final List<Shard> shards) {
+            this.shards = shards.toArray(new Shard[shards.size()]);
+            final int count = shards.size() * POINTS_PER_SHARD;
+            final long[] unsorted = new long[count];
+            final Map<Long, Shard> ownerOf = new LinkedHashMap<Long, Shard>();
+            int n = 0;
+            for (final Shard shard : shards) {
+                for (int i = 0; i < POINTS_PER_SHARD; i++) {
+                    final byte[] key = (shard.name + '#' + i).getBytes(MESSAGE_CHARSET);
+                    final long point = ConsistentSampler.mix(hash(FNV_OFFSET_BASIS, ByteBuffer.wrap(key), 0, key.length));
+                    // on the rare collision, the first server keeps the point
+                    if (!ownerOf.containsKey(point)) {
+                        ownerOf.put(point, shard);
+                        unsorted[n++] = point;
+                    }
+                }
+            }
+            points = Arrays.copyOf(unsorted, n);
+            Arrays.sort(points);
+            owners = new Shard[n];
+            for (int i = 0; i < n; i++) {
+                owners[i] = ownerOf.get(points[i]);
+            }
+        }
+
+        Shard shardOf(final ByteBuffer packet, final int start, final int end) {
+            final long hash = contextHash(packet, start, end);
+            int index = Arrays.binarySearch(points, hash);
+            if (index < 0) {
+                index = -index - 1;
+            }
+            return owners[index == points.length ? 0 : index];
+        }
+    }
+
+    private static final class Shard {
+        final String name;
+        final Transport transport;
+        final Callable<SocketAddress> addressLookup;
+        final ByteBuffer packet;
+
+        Shard(final String name, final Transport transport, final Callable<SocketAddress> addressLookup,
+              final int packetSizeBytes) {
+            this.name = name;
+            this.transport = transport;
+            this.addressLookup = addressLookup;
+            this.packet = ByteBuffer.allocate(packetSizeBytes);
+        }
+
+        void append(final ByteBuffer source, final int start, final int end) throws IOException {
+            final int length = end - start;
+            if (packet.position() > 0 && packet.remaining() < length + 1) {
+                send();
+            }
+            if (packet.position() > 0) {
+                packet.put((byte) '\n');
+            }
+            final ByteBuffer message = source.duplicate();
+            message.limit(end);
+            message.position(start);
+            packet.put(message);
+        }
+
+        void flush() throws IOException {
+            if (packet.position() > 0) {
+                send();
+            }
+            transport.flush();
+        }
+
+        private void send() throws IOException {
+            packet.flip();
+            try {
+                transport.write(packet, lookupAddress());
+            } finally {
+                packet.clear();
+            }
+        }
+
+        private SocketAddress lookupAddress() throws IOException {
+            try {
+                return addressLookup.call();
+            } catch (final IOException e) {
+                throw e;
+            } catch (final Exception e) {
+                throw new IOException("Could not look up the address of " + name, e);
+            }
+        }
+    }
+}
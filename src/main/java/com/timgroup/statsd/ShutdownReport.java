@@ -0,0 +1,35 @@
+package com.timgroup.statsd;
+
+/**
+ * What became of the messages still queued when a client was stopped, see
+ * {@link NonBlockingStatsDClient#stop(long, java.util.concurrent.TimeUnit)}.
+ */
+public final class ShutdownReport {
+    private final long flushedMessages;
+    private final long abandonedMessages;
+
+    ShutdownReport(final long flushedMessages, final long abandonedMessages) {
+        this.flushedMessages = flushedMessages;
+        this.abandonedMessages = abandonedMessages;
+    }
+
+    /**
+     * @return the number of messages sent while stopping
+     */
+    public long getFlushedMessageCount() {
+        return flushedMessages;
+    }
+
+    /**
+     * @return the number of messages dropped because the deadline passed before they could be sent,
+     *     or because the transport failed to send them
+     */
+    public long getAbandonedMessageCount() {
+        return abandonedMessages;
+    }
+
+    @Override
+    public String toString() {
+        return "ShutdownReport{flushed=" + flushedMessages + ", abandoned=" + abandonedMessages + "}";
+    }
+}
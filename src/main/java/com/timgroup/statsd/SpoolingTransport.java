@@ -0,0 +1,309 @@
+package com.timgroup.statsd;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the packets another transport fails to send in a ring file mapped in memory, while the
+ * StatsD server is down, for instance while the agent restarts, and sends them again at a limited
+ * rate once it is back.
+ *
+ * <p>As soon as a write fails, that packet and all the following ones are appended to the spool,
+ * in order. Every retry interval, the oldest packet is written again; once it is sent, new packets
+ * are sent at once again, and only the spool is replayed, at up to the replay rate. When the spool
+ * is full, the oldest packets are dropped to make room. The spool lives outside of the heap, which
+ * thus stays flat however long the outage.</p>
+ *
+ * <p>When the transport is a unix datagram socket that fails for good, for instance once the agent
+ * restarted, its channel is opened again before the next retry. The packet that failed being
+ * spooled, the sender does not resend it itself.</p>
+ *
+ * <p>Packets a transport accepts and fails to send later, on flush, cannot be spooled; the
+ * spool suits transports sending each packet as it is written, such as unix datagram sockets.</p>
+ *
+ * <p>While packets are spooled, {@link #hasPending()} is true, so that the flushes of the client
+ * fail until the spool has been replayed.</p>
+ *
+ * <p>The file is truncated when the transport is created, and unmapped then deleted when it is
+ * closed: packets spooled are not kept across restarts of the application.</p>
+ */
+final class SpoolingTransport implements Transport {
+    static final int DEFAULT_SPOOL_BYTES = 64 * 1024 * 1024;
+    static final int DEFAULT_REPLAY_RATE = 10000;
+    private static final int HEADER_BYTES = 4;
+    private static final int WRAP = -1;
+    private static final long RETRY_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final Transport delegate;
+    private final File file;
+    private final FileChannel channel;
+    private final MappedByteBuffer spool;
+    private final int replayRate;
+    private final StatsDClientErrorHandler handler;
+
+    private int head;
+    private int tail;
+    private int count;
+    private long droppedPackets;
+    private SocketAddress address;
+    private long nextRetryNanos;
+    private boolean replaying;
+    private double replayCredit;
+    private long replayedNanos;
+
+    /**
+     * @param delegate
+     *     the transport to send through, closed with this one
+     * @param file
+     *     the spool file, created if needed
+     * @param spoolBytes
+     *     the size of the spool file
+     * @param replayRate
+     *     the number of spooled packets sent per second once the server is back
+     * @throws IOException
+     *     if the file could not be mapped
+     */
+    SpoolingTransport(final Transport delegate, final File file, final int spoolBytes, final int replayRate,
+                      final StatsDClientErrorHandler handler) throws IOException {
+        this.delegate = delegate;
+        this.file = file;
+        this.replayRate = Math.max(1, replayRate);
+        this.handler = handler;
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            spool = channel.map(FileChannel.MapMode.READ_WRITE, 0, spoolBytes);
+        } catch (final IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void write(final ByteBuffer packet, final SocketAddress address) throws IOException {
+        this.address = address;
+        if (count > 0 && !replaying) {
+            // the server is not known to be back yet
+            append(packet);
+            return;
+        }
+        final int position = packet.position();
+        try {
+            delegate.write(packet, address);
+        } catch (final IOException e) {
+            packet.position(position);
+            append(packet);
+            failed(e, System.nanoTime());
+            throw new IOException("Could not send to " + address + ", spooling packets until it is back", e);
+        }
+    }
+
+    @Override
+    public void write(final ByteBuffer[] packets, final int offset, final int length, final SocketAddress address) throws IOException {
+        IOException failure = null;
+        for (int i = offset; i < offset + length; i++) {
+            try {
+                write(packets[i], address);
+            } catch (final IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Replays the spool, as far as the retry interval and the replay rate allow, then flushes the
+     * transport.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (count > 0) {
+            replay();
+        }
+        delegate.flush();
+    }
+
+    @Override
+    public boolean hasPending() {
+        return count > 0 || delegate.hasPending();
+    }
+
+    @Override
+    public int getMaxPacketSizeBytes() {
+        return delegate.getMaxPacketSizeBytes();
+    }
+
+    @Override
+    public boolean supportsBatching() {
+        return delegate.supportsBatching();
+    }
+
+    /**
+     * @return the number of packets in the spool
+     */
+    int getSpooledPacketCount() {
+        return count;
+    }
+
+    private void replay() {
+        final long now = System.nanoTime();
+        if (!replaying) {
+            if (now - nextRetryNanos < 0) {
+                return;
+            }
+            replayCredit = 1;
+        } else {
+            // up to a tenth of a second worth of packets at once
+            replayCredit = Math.min(Math.max(1, replayRate / 10.0),
+                    replayCredit + (now - replayedNanos) * replayRate / (double) TimeUnit.SECONDS.toNanos(1));
+        }
+        replayedNanos = now;
+        while (count > 0 && replayCredit >= 1) {
+            // jnr's unix datagram channel sends direct buffers from their start, whatever their position
+            final ByteBuffer packet = peek().slice();
+            try {
+                delegate.write(packet, address);
+            } catch (final IOException e) {
+                failed(e, now);
+                return;
+            }
+            remove();
+            replayCredit--;
+            replaying = true;
+        }
+        if (count == 0 && droppedPackets > 0) {
+            handler.handle(new IOException("Dropped " + droppedPackets + " packets to " + address + ": spool full"));
+            droppedPackets = 0;
+        }
+    }
+
+    /**
+     * Waits for the retry interval before writing again, opening a new channel first if the
+     * transport fails for good.
+     */
+    private void failed(final IOException e, final long now) {
+        replaying = false;
+        nextRetryNanos = now + RETRY_INTERVAL_NANOS;
+        if (delegate instanceof DatagramTransport && ((DatagramTransport) delegate).isReopenable(e)) {
+            try {
+                ((DatagramTransport) delegate).reopen();
+            } catch (final IOException reopenFailure) {
+                handler.handle(reopenFailure);
+            }
+        }
+    }
+
+    private void append(final ByteBuffer packet) throws IOException {
+        final int length = packet.remaining();
+        final int recordBytes = HEADER_BYTES + length;
+        if (recordBytes > spool.capacity() / 2) {
+            throw new IOException("Packet of " + length + " bytes larger than the spool");
+        }
+        while (count > 0 && !fits(recordBytes)) {
+            remove();
+            if (droppedPackets++ == 0) {
+                handler.handle(new IOException("Spool full, dropping the oldest packets to " + address));
+            }
+        }
+        if (count == 0) {
+            head = 0;
+            tail = 0;
+        }
+        if (tail + recordBytes > spool.capacity()) {
+            if (tail + HEADER_BYTES <= spool.capacity()) {
+                spool.putInt(tail, WRAP);
+            }
+            tail = 0;
+        }
+        spool.putInt(tail, length);
+        final ByteBuffer record = spool.duplicate();
+        record.position(tail + HEADER_BYTES);
+        record.put(packet);
+        tail += recordBytes;
+        count++;
+    }
+
+    /**
+     * @return true if the record fits between the tail and the head, wrapping if needed
+     */
+    private boolean fits(final int recordBytes) {
+        if (tail > head) {
+            return tail + recordBytes <= spool.capacity() || recordBytes <= head;
+        }
+        // the tail has wrapped behind the head
+        return tail + recordBytes <= head;
+    }
+
+    private ByteBuffer peek() {
+        if (head + HEADER_BYTES > spool.capacity() || spool.getInt(head) == WRAP) {
+            head = 0;
+        }
+        final ByteBuffer packet = spool.duplicate();
+        packet.position(head + HEADER_BYTES);
+        packet.limit(head + HEADER_BYTES + spool.getInt(head));
+        return packet;
+    }
+
+    private void remove() {
+        final ByteBuffer packet = peek();
+        head = packet.limit();
+        count--;
+    }
+
+    @Override
+    public void close() {
+        delegate.close();
+        count = 0;
+        unmap(spool);
+        try {
+            channel.close();
+        } catch (final IOException e) {
+            // the spool is dropped either way
+        }
+        if (!file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    /**
+     * Releases the mapping at once rather than once the buffer is garbage collected, so that its
+     * memory is returned and the file can be deleted, which Windows refuses while it is mapped. The
+     * cleaner being internal to the JDK, the mapping is left to the garbage collector if it cannot
+     * be reached.
+     */
+    private static void unmap(final MappedByteBuffer buffer) {
+        try {
+            final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = null;
+            try {
+                invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            } catch (final NoSuchMethodException e) {
+                // before Java 9
+            }
+            if (invokeCleaner != null) {
+                final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                invokeCleaner.invoke(theUnsafe.get(null), buffer);
+                return;
+            }
+            final Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            final Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (final Exception e) {
+            // unmapped once garbage collected
+        }
+    }
+}
@@ -1,6 +1,8 @@
 package com.timgroup.statsd;
 
 import java.io.Closeable;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Describes a client connection to a StatsD server, which may be used to post metrics
@@ -31,6 +33,30 @@ public interface StatsDClient extends Closeable {
     @Override
     void close();
 
+    /**
+     * Sends all the metrics recorded so far, including the values aggregated by the client, and waits
+     * until they are written to the socket, without stopping the client.
+     *
+     * @param timeout
+     *     the time to wait for at most
+     * @param unit
+     *     the unit of the timeout
+     * @return true if the metrics were written before the timeout expired, false also if writes failed or
+     *     metrics were dropped since the previous flush
+     */
+    boolean flush(long timeout, TimeUnit unit);
+
+    /**
+     * Sends all the metrics recorded so far, including the values aggregated by the client, without
+     * waiting for them to be written.
+     *
+     * @return a future completing once the metrics recorded before the call are written to the socket,
+     *     or failing if the flush could not be queued, if writes failed or metrics were dropped since the
+     *     previous flush, or if metrics were abandoned when the client stopped
+     * @see #flush(long, TimeUnit)
+     */
+    Future<Void> flushAsync();
+
     /**
      * Adjusts the specified counter by a given delta.
      *
@@ -537,4 +563,111 @@ public interface StatsDClient extends Closeable {
      */
     void recordSetValue(String aspect, String value, String... tags);
 
+    /**
+     * Records the current total of a monotonically increasing source, such as a JMX or OS counter,
+     * and adjusts the specified counter by the increase since the previous total recorded for the
+     * same aspect and tags.
+     *
+     * <p>The first total recorded only sets the baseline. A total lower than the previous one is
+     * taken as a reset of the source, and counts from zero.</p>
+     *
+     * <p>This method is non-blocking and is guaranteed not to throw an exception.</p>
+     *
+     * @param aspect
+     *     the name of the counter to adjust
+     * @param cumulativeValue
+     *     the current total of the source
+     * @param tags
+     *     array of tags to be added to the data
+     */
+    void monotonicCount(String aspect, long cumulativeValue, String... tags);
+
+    /**
+     * Registers a gauge whose value is polled by the client at its default polling interval,
+     * instead of being recorded by the application on every change.
+     *
+     * <p>The client holds the supplier, and whatever it references, until the gauge is unregistered
+     * with {@link #unregisterGauge(String, String...)} or the client is stopped, so inline suppliers
+     * keep being polled. Registering another supplier for the same aspect and tags replaces the
+     * previous one.</p>
+     *
+     * @param aspect
+     *     the name of the gauge
+     * @param supplier
+     *     yields the current reading of the gauge
+     * @param tags
+     *     array of tags to be added to the data
+     */
+    void registerGauge(String aspect, LongGaugeSupplier supplier, String... tags);
+
+    /**
+     * Registers a gauge whose value is polled by the client at the given interval.
+     *
+     * @param aspect
+     *     the name of the gauge
+     * @param supplier
+     *     yields the current reading of the gauge
+     * @param intervalMs
+     *     the interval in milliseconds at which the gauge is polled
+     * @param tags
+     *     array of tags to be added to the data
+     * @see #registerGauge(String, LongGaugeSupplier, String...)
+     */
+    void registerGauge(String aspect, LongGaugeSupplier supplier, long intervalMs, String... tags);
+
+    /**
+     * Registers a gauge whose value is polled by the client at its default polling interval.
+     *
+     * @param aspect
+     *     the name of the gauge
+     * @param supplier
+     *     yields the current reading of the gauge
+     * @param tags
+     *     array of tags to be added to the data
+     * @see #registerGauge(String, LongGaugeSupplier, String...)
+     */
+    void registerGauge(String aspect, DoubleGaugeSupplier supplier, String... tags);
+
+    /**
+     * Registers a gauge whose value is polled by the client at the given interval.
+     *
+     * @param aspect
+     *     the name of the gauge
+     * @param supplier
+     *     yields the current reading of the gauge
+     * @param intervalMs
+     *     the interval in milliseconds at which the gauge is polled
+     * @param tags
+     *     array of tags to be added to the data
+     * @see #registerGauge(String, LongGaugeSupplier, String...)
+     */
+    void registerGauge(String aspect, DoubleGaugeSupplier supplier, long intervalMs, String... tags);
+
+    /**
+     * Stops polling the gauge registered for the given aspect and tags, if any.
+     *
+     * @param aspect
+     *     the name of the gauge
+     * @param tags
+     *     array of tags the gauge was registered with
+     */
+    void unregisterGauge(String aspect, String... tags);
+
+    /**
+     * Returns the summary rolling up the execution times of the specified named operation, creating
+     * it if needed. Only the count, sum, minimum and maximum of the times recorded through the summary
+     * are sent, once per flush interval, as the counters "aspect.count" and "aspect.sum" and the gauges
+     * "aspect.min" and "aspect.max".
+     *
+     * <p>The number of summaries a client tracks is bounded; past that, {@link TimerSummary#NO_OP}
+     * is returned.</p>
+     *
+     * @param aspect
+     *     the name of the timed operation
+     * @param tags
+     *     array of tags to be added to the data
+     * @return the summary of the operation, to record times into
+     */
+    TimerSummary timerSummary(String aspect, String... tags);
+
 }
@@ -9,18 +9,58 @@ import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class StatsDSender implements Runnable {
     private static final Charset MESSAGE_CHARSET = Charset.forName("UTF-8");
     private static final String MESSAGE_TOO_LONG = "Message longer than size of sendBuffer";
+    private static final long PENDING_FLUSH_INTERVAL_MS = 5;
+    private static final long MIN_CIRCUIT_BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long MAX_CIRCUIT_BACKOFF_NANOS = TimeUnit.SECONDS.toNanos(30);
+    private static final long MIN_REOPEN_BACKOFF_MS = 100;
+    private static final long MAX_REOPEN_BACKOFF_MS = 5000;
+    private static final int MAX_REOPEN_ATTEMPTS = 8;
 
-    private final ByteBuffer sendBuffer;
+    /**
+     * Wakes up the sender waiting for messages when shutting down. Compared by identity.
+     */
+    private static final String WAKEUP = new String();
+
+    private ByteBuffer sendBuffer;
     private final Callable<SocketAddress> addressLookup;
     private final BlockingQueue<String> queue;
     private final StatsDClientErrorHandler handler;
-    private final DatagramChannel clientChannel;
 
     private volatile boolean shutdown;
+    private volatile boolean drainDeadlineSet;
+    private volatile long drainDeadlineNanos;
+    private final AtomicLong flushedMessages = new AtomicLong();
+    private final AtomicLong abandonedMessages = new AtomicLong();
+    private final AtomicLong droppedMessages = new AtomicLong();
+    private final AtomicLong failedSends = new AtomicLong();
+    private volatile boolean circuitOpen;
+    private volatile long circuitRetryNanos;
+
+    private BufferPool bufferPool;
+    private FlushBarriers flushBarriers;
+    private Transport transport;
+    private long addressRefreshNanos = -1;
+    private SocketAddress cachedAddress;
+    private long addressResolvedNanos;
+    private int circuitBreakerThreshold;
+    private int consecutiveFailures;
+    private long circuitBackoffNanos;
+    private int bufferedMessagesOnShutdown;
+    private boolean resendPending;
+    private ByteBuffer keptPacket;
+    private SocketAddress keptAddress;
+    private int keptMessagesOnShutdown;
+    private int reopenAttempts;
+    private long reopenBackoffMs;
+    private long reopenAtNanos;
+    private long failedSendsAtMarker;
+    private long droppedMessagesAtMarker;
+    private long abandonedMessagesAtMarker;
 
 
     StatsDSender(final Callable<SocketAddress> addressLookup, final int queueSize,
@@ -30,17 +70,108 @@ public class StatsDSender implements Runnable {
 
     StatsDSender(final Callable<SocketAddress> addressLookup, final BlockingQueue<String> queue,
                  final StatsDClientErrorHandler handler, final DatagramChannel clientChannel, final int maxPacketSizeBytes) {
+        this(addressLookup, queue, handler, new DatagramTransport(clientChannel), maxPacketSizeBytes);
+    }
+
+    StatsDSender(final Callable<SocketAddress> addressLookup, final int queueSize,
+                 final StatsDClientErrorHandler handler, final Transport transport, final int maxPacketSizeBytes) {
+        this(addressLookup,  new LinkedBlockingQueue<String>(queueSize), handler, transport, maxPacketSizeBytes);
+    }
+
+    StatsDSender(final Callable<SocketAddress> addressLookup, final BlockingQueue<String> queue,
+                 final StatsDClientErrorHandler handler, final Transport transport, final int maxPacketSizeBytes) {
         sendBuffer = ByteBuffer.allocate(maxPacketSizeBytes);
         this.addressLookup = addressLookup;
         this.queue = queue;
         this.handler = handler;
-        this.clientChannel = clientChannel;
+        this.transport = transport;
+    }
+
+
+    /**
+     * Connects the channel to the address of the StatsD server, which is then only looked up again
+     * once per refresh interval, instead of for every message. The channel is reconnected whenever
+     * the address changes. Must be called before the sender is started.
+     */
+    void useConnectedChannel(final long addressRefreshIntervalMs) {
+        addressRefreshNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, addressRefreshIntervalMs));
+        if (transport instanceof DatagramTransport) {
+            ((DatagramTransport) transport).connectOnWrite();
+        }
+    }
+
+    /**
+     * Opens the unix socket channel again when it fails for good, for instance once the agent
+     * restarted, retrying the packet that failed with a bounded backoff while the messages wait in
+     * the queue. Must be called before the sender is started.
+     */
+    void reopenUnixChannel(final int timeout, final int bufferSize) {
+        if (transport instanceof DatagramTransport) {
+            ((DatagramTransport) transport).reopenOnFailure(timeout, bufferSize);
+        }
+    }
+
+    /**
+     * Takes the send buffer from the pool, for instance to send from a direct buffer, and returns
+     * it when the sender stops. Must be called before the sender is started.
+     */
+    void useBufferPool(final BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+        sendBuffer = bufferPool.borrow();
+    }
+
+    /**
+     * Hands the packets to another transport. Must be called before the sender is started.
+     */
+    void useTransport(final Transport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * Completes the flushes whose markers are queued, once the messages queued before them are
+     * written. Must be called before the sender is started.
+     */
+    void useFlushBarriers(final FlushBarriers flushBarriers) {
+        this.flushBarriers = flushBarriers;
+    }
+
+    /**
+     * Stops sending after the given number of consecutive failed sends, dropping messages until a
+     * single packet is sent again, with an exponential backoff between attempts. Must be called
+     * before the sender is started.
+     */
+    void useCircuitBreaker(final int consecutiveFailures) {
+        this.circuitBreakerThreshold = consecutiveFailures;
+    }
+
+    /**
+     * @return true while sends are suspended after consecutive failures, in which case messages are
+     *     dropped and need not be formatted
+     */
+    boolean isCircuitOpen() {
+        return circuitOpen && System.nanoTime() - circuitRetryNanos < 0;
+    }
+
+    /**
+     * Counts a message dropped by the client without queueing it, while the circuit is open.
+     */
+    void countDroppedMessage() {
+        droppedMessages.incrementAndGet();
     }
 
+    Transport getTransport() {
+        return transport;
+    }
 
     boolean send(final String message) {
         if (!shutdown) {
-            queue.offer(message);
+            if (!queue.offer(message)) {
+                if (!FlushBarriers.isMarker(message)) {
+                    droppedMessages.incrementAndGet();
+                } else if (flushBarriers != null) {
+                    flushBarriers.fail(message, new IOException("Could not flush: queue full"));
+                }
+            }
             return true;
         }
         return false;
@@ -48,27 +179,101 @@ public class StatsDSender implements Runnable {
 
     @Override
     public void run() {
-        while (!(queue.isEmpty() && shutdown)) {
+        try {
+            sendLoop();
+        } finally {
+            try {
+                flushTransport();
+            } catch (final Exception e) {
+                handler.handle(e);
+            }
+            transport.close();
+            if (flushBarriers != null) {
+                // the messages before them are sent or dropped
+                final IOException failure = flushFailure(getAbandonedMessageCount());
+                if (failure != null) {
+                    flushBarriers.failAll(failure);
+                } else {
+                    flushBarriers.completeAll();
+                }
+            }
+            if (bufferPool != null) {
+                bufferPool.release(sendBuffer);
+            }
+        }
+    }
+
+    private void sendLoop() {
+        while (!(queue.isEmpty() && shutdown && !resendPending)) {
             try {
                 if (Thread.interrupted()) {
+                    if (shutdown) {
+                        abandonedMessages.addAndGet(bufferedMessagesOnShutdown);
+                        dropKeptPacket();
+                    }
+                    return;
+                }
+                final boolean pending = transport.hasPending();
+                if (shutdown && drainDeadlineSet && System.nanoTime() - drainDeadlineNanos >= 0) {
+                    abandon();
                     return;
                 }
-                final String message = queue.poll(1, TimeUnit.SECONDS);
+                if (resendPending) {
+                    // the messages wait in the queue until the packet that failed is sent or dropped
+                    awaitResend();
+                    continue;
+                }
+                String message = pending
+                        ? queue.poll(PENDING_FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS)
+                        : queue.poll(1, TimeUnit.SECONDS);
+                if (message == WAKEUP) {
+                    message = null;
+                } else if (message != null && FlushBarriers.isMarker(message)) {
+                    flush(message);
+                    continue;
+                }
+                if (isCircuitOpen()) {
+                    // drop without any system call until the next attempt
+                    if (sendBuffer.position() > 0) {
+                        dropBuffered();
+                    }
+                    if (message != null) {
+                        if (shutdown) {
+                            abandonedMessages.incrementAndGet();
+                        } else {
+                            droppedMessages.incrementAndGet();
+                        }
+                    }
+                    continue;
+                }
+                if (null == message && pending) {
+                    flushTransport();
+                }
                 if (null != message) {
                     final byte[] data = message.getBytes(MESSAGE_CHARSET);
                     if (sendBuffer.capacity() < data.length) {
                         throw new InvalidMessageException(MESSAGE_TOO_LONG, message);
                     }
-                    final SocketAddress address = addressLookup.call();
+                    final SocketAddress address = lookupAddress();
                     if (sendBuffer.remaining() < (data.length + 1)) {
-                        blockingSend(address);
+                        try {
+                            blockingSend(address);
+                        } catch (final IOException e) {
+                            // the message goes in the next packet all the same
+                            handler.handle(e);
+                        }
                     }
                     if (sendBuffer.position() > 0) {
                         sendBuffer.put((byte) '\n');
                     }
                     sendBuffer.put(data);
-                    if (null == queue.peek()) {
+                    if (shutdown) {
+                        bufferedMessagesOnShutdown++;
+                    }
+                    final String next = queue.peek();
+                    if ((null == next || FlushBarriers.isMarker(next)) && !resendPending) {
                         blockingSend(address);
+                        flushTransport();
                     }
                 }
             } catch (final InterruptedException e) {
@@ -81,31 +286,348 @@ public class StatsDSender implements Runnable {
         }
     }
 
+    /**
+     * Drops the messages left once the drain deadline has passed, after sending those already in
+     * the send buffer.
+     */
+    private void abandon() throws Exception {
+        dropKeptPacket();
+        if (sendBuffer.position() > 0) {
+            blockingSend(lookupAddress());
+            dropKeptPacket();
+        }
+        String message;
+        while ((message = queue.poll()) != null) {
+            if (!FlushBarriers.isMarker(message)) {
+                abandonedMessages.incrementAndGet();
+            } else {
+                completeBarrier(message);
+            }
+        }
+    }
+
+    /**
+     * Flushes the transport, the messages before the marker being written already, and completes
+     * the barrier, or fails it if the transport still holds packets back, for instance in its spool
+     * while the server is down. Errors are reported like those of any write.
+     */
+    private void flush(final String marker) {
+        try {
+            if (transport.hasPending() && !isCircuitOpen()) {
+                flushTransport();
+            }
+        } catch (final IOException e) {
+            handler.handle(e);
+        } finally {
+            completeBarrier(marker, transport.hasPending());
+        }
+    }
+
+    private void completeBarrier(final String marker) {
+        completeBarrier(marker, false);
+    }
+
+    /**
+     * Completes the barrier of the marker, or fails it if sends failed or messages were dropped
+     * since the previous marker, or if packets are still held back.
+     */
+    private void completeBarrier(final String marker, final boolean heldBack) {
+        if (flushBarriers == null) {
+            return;
+        }
+        IOException failure = flushFailure(abandonedMessages.get());
+        if (failure == null && heldBack) {
+            failure = new IOException("Could not flush: packets still held back by the transport");
+        }
+        if (failure != null) {
+            flushBarriers.fail(marker, failure);
+        } else {
+            flushBarriers.complete(marker);
+        }
+    }
+
+    /**
+     * @return the reason to fail a barrier if sends failed, or messages were dropped or abandoned,
+     *     since the previous barrier, null otherwise
+     */
+    private IOException flushFailure(final long abandoned) {
+        final long failedSendsNow = failedSends.get();
+        final long droppedMessagesNow = droppedMessages.get();
+        final long failed = failedSendsNow - failedSendsAtMarker;
+        final long dropped = droppedMessagesNow - droppedMessagesAtMarker + abandoned - abandonedMessagesAtMarker;
+        failedSendsAtMarker = failedSendsNow;
+        droppedMessagesAtMarker = droppedMessagesNow;
+        abandonedMessagesAtMarker = abandoned;
+        if (failed == 0 && dropped == 0) {
+            return null;
+        }
+        return new IOException("Could not flush: " + failed + " failed sends and " + dropped
+                + " messages dropped since the previous flush");
+    }
+
+    private SocketAddress lookupAddress() throws Exception {
+        if (addressRefreshNanos < 0) {
+            return addressLookup.call();
+        }
+        final long now = System.nanoTime();
+        if (cachedAddress == null || now - addressResolvedNanos >= addressRefreshNanos) {
+            addressResolvedNanos = now;
+            try {
+                cachedAddress = addressLookup.call();
+            } catch (final Exception e) {
+                if (cachedAddress == null) {
+                    throw e;
+                }
+                // keep sending to the last address known
+                handler.handle(e);
+            }
+        }
+        return cachedAddress;
+    }
+
     private void blockingSend(final SocketAddress address) throws IOException {
-        final int sizeOfBuffer = sendBuffer.position();
         sendBuffer.flip();
+        boolean written = false;
+        try {
+            transport.write(sendBuffer, address);
+            written = true;
+            if (!transport.supportsBatching()) {
+                // the packet is sent, rather than queued for the next flush
+                sendSucceeded();
+            }
+        } catch (final IOException e) {
+            sendFailed(e);
+            // a spool keeps the packet that failed, and opens the channel again itself
+            if (!(transport instanceof DatagramTransport) || !((DatagramTransport) transport).isReopenable(e)) {
+                throw e;
+            }
+            handler.handle(e);
+            keepForResend(address);
+        } finally {
+            sendBuffer.clear();
+            if (written) {
+                flushedMessages.addAndGet(bufferedMessagesOnShutdown);
+            } else {
+                abandonedMessages.addAndGet(bufferedMessagesOnShutdown);
+            }
+            bufferedMessagesOnShutdown = 0;
+        }
+    }
 
-        final int sentBytes = clientChannel.send(sendBuffer, address);
-        sendBuffer.limit(sendBuffer.capacity());
+    /**
+     * Keeps a copy of the packet that failed, to send it again through a new channel after a
+     * backoff.
+     */
+    private void keepForResend(final SocketAddress address) {
+        if (keptPacket == null) {
+            keptPacket = sendBuffer.isDirect()
+                    ? ByteBuffer.allocateDirect(sendBuffer.capacity())
+                    : ByteBuffer.allocate(sendBuffer.capacity());
+        }
+        keptPacket.clear();
         sendBuffer.rewind();
+        keptPacket.put(sendBuffer);
+        keptPacket.flip();
+        keptAddress = address;
+        keptMessagesOnShutdown = bufferedMessagesOnShutdown;
+        // the messages are counted once the packet is sent or dropped
+        bufferedMessagesOnShutdown = 0;
+        resendPending = true;
+        reopenAttempts = 0;
+        reopenBackoffMs = MIN_REOPEN_BACKOFF_MS;
+        reopenAtNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(reopenBackoffMs);
+    }
 
-        if (sizeOfBuffer != sentBytes) {
-            handler.handle(
-                    new IOException(
-                            String.format(
-                                    "Could not send entirely stat %s to %s. Only sent %d bytes out of %d bytes",
-                                    sendBuffer.toString(),
-                                    address.toString(),
-                                    sentBytes,
-                                    sizeOfBuffer)));
+    /**
+     * Waits for the next attempt to send the packet kept, or for the drain deadline, then opens the
+     * channel again and sends the packet, followed by the messages buffered after it, if any.
+     */
+    private void awaitResend() throws Exception {
+        if (isCircuitOpen()) {
+            // dropped like the messages behind it
+            dropKeptPacket();
+            return;
         }
+        final long now = System.nanoTime();
+        long waitNanos = reopenAtNanos - now;
+        if (shutdown && drainDeadlineSet) {
+            waitNanos = Math.min(waitNanos, drainDeadlineNanos - now);
+        }
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+            return;
+        }
+        resendThroughNewChannel((DatagramTransport) transport);
+        if (!resendPending && sendBuffer.position() > 0) {
+            blockingSend(lookupAddress());
+            flushTransport();
+        }
+    }
+
+    /**
+     * Opens the channel again and sends the packet kept, waiting twice as long before the next
+     * attempt if it fails. The packet is dropped after a bounded number of attempts, or once the
+     * error is of another kind.
+     */
+    private void resendThroughNewChannel(final DatagramTransport datagramTransport) throws IOException {
+        reopenAttempts++;
+        try {
+            datagramTransport.reopen();
+            keptPacket.rewind();
+            datagramTransport.write(keptPacket, keptAddress);
+        } catch (final IOException e) {
+            sendFailed(e);
+            if (reopenAttempts >= MAX_REOPEN_ATTEMPTS || !datagramTransport.isReopenable(e)) {
+                dropKeptPacket();
+                throw new IOException("Dropped a packet to " + keptAddress + " after " + reopenAttempts
+                        + " attempts to open the channel again", e);
+            }
+            handler.handle(e);
+            reopenBackoffMs = Math.min(MAX_REOPEN_BACKOFF_MS, reopenBackoffMs * 2);
+            reopenAtNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(reopenBackoffMs);
+            return;
+        }
+        sendSucceeded();
+        resendPending = false;
+        flushedMessages.addAndGet(keptMessagesOnShutdown);
+        keptMessagesOnShutdown = 0;
+    }
+
+    /**
+     * Drops the packet kept to be sent again, if any, counting its messages as dropped, or as
+     * abandoned for those buffered since the sender was shut down.
+     */
+    private void dropKeptPacket() {
+        if (!resendPending) {
+            return;
+        }
+        resendPending = false;
+        final int messages = countMessages(keptPacket, keptPacket.limit());
+        droppedMessages.addAndGet(messages - keptMessagesOnShutdown);
+        abandonedMessages.addAndGet(keptMessagesOnShutdown);
+        keptMessagesOnShutdown = 0;
+    }
+
+    /**
+     * Drops the messages in the send buffer, once the circuit is open, like those behind them.
+     */
+    private void dropBuffered() {
+        final int messages = countMessages(sendBuffer, sendBuffer.position());
+        droppedMessages.addAndGet(messages - bufferedMessagesOnShutdown);
+        abandonedMessages.addAndGet(bufferedMessagesOnShutdown);
+        bufferedMessagesOnShutdown = 0;
+        sendBuffer.clear();
+    }
+
+    /**
+     * @return the number of messages in the first bytes of the packet, separated by newlines
+     */
+    private static int countMessages(final ByteBuffer packet, final int length) {
+        if (length == 0) {
+            return 0;
+        }
+        int messages = 1;
+        for (int i = 0; i < length; i++) {
+            if (packet.get(i) == '\n') {
+                messages++;
+            }
+        }
+        return messages;
+    }
+
+    private void flushTransport() throws IOException {
+        try {
+            transport.flush();
+            sendSucceeded();
+        } catch (final IOException e) {
+            sendFailed(e);
+            throw e;
+        }
+    }
+
+    private void sendSucceeded() {
+        consecutiveFailures = 0;
+        if (circuitOpen) {
+            circuitOpen = false;
+            circuitBackoffNanos = 0;
+        }
+    }
+
+    private void sendFailed(final IOException e) {
+        failedSends.incrementAndGet();
+        if (circuitBreakerThreshold <= 0) {
+            return;
+        }
+        if (circuitOpen) {
+            // the attempt failed, wait longer before the next one
+            circuitBackoffNanos = Math.min(MAX_CIRCUIT_BACKOFF_NANOS, circuitBackoffNanos * 2);
+            circuitRetryNanos = System.nanoTime() + circuitBackoffNanos;
+        } else if (++consecutiveFailures >= circuitBreakerThreshold) {
+            circuitBackoffNanos = MIN_CIRCUIT_BACKOFF_NANOS;
+            circuitRetryNanos = System.nanoTime() + circuitBackoffNanos;
+            circuitOpen = true;
+            handler.handle(new IOException("Suspending sends after " + consecutiveFailures
+                    + " consecutive failures, retrying in " + TimeUnit.NANOSECONDS.toMillis(circuitBackoffNanos) + " ms", e));
+        }
+    }
+
+    /**
+     * @return the number of messages dropped because the queue was full, or while sends were
+     *     suspended by the circuit breaker
+     */
+    long getDroppedMessageCount() {
+        return droppedMessages.get();
+    }
+
+    /**
+     * @return the number of writes and flushes of the transport that failed
+     */
+    long getFailedSendCount() {
+        return failedSends.get();
+    }
+
+    /**
+     * @return the number of messages the transport accepted since the sender was shut down
+     */
+    long getFlushedMessageCount() {
+        return flushedMessages.get();
+    }
+
+    /**
+     * @return the number of messages dropped since the sender was shut down, either left in the
+     *     queue at the drain deadline, dropped while sends were suspended, or in a packet the
+     *     transport failed to write
+     */
+    long getAbandonedMessageCount() {
+        long queued = 0;
+        for (final String message : queue) {
+            if (!FlushBarriers.isMarker(message)) {
+                queued++;
+            }
+        }
+        return abandonedMessages.get() + queued;
     }
 
     boolean isShutdown() {
         return shutdown;
     }
 
+    /**
+     * Shuts down once the messages queued are sent, or once the deadline has passed, whichever
+     * comes first.
+     */
+    void shutdown(final long drainDeadlineNanos) {
+        this.drainDeadlineNanos = drainDeadlineNanos;
+        drainDeadlineSet = true;
+        shutdown();
+    }
+
+    /**
+     * Shuts down once the messages queued are sent, waking up the sender if it waits for messages.
+     */
     void shutdown() {
         shutdown = true;
+        // a full queue needs no wakeup
+        queue.offer(WAKEUP);
     }
 }
\ No newline at end of file
@@ -0,0 +1,74 @@
+package com.timgroup.statsd;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+
+/**
+ * The address of a StatsD server, or relay, to send to over TCP instead of UDP.
+ *
+ * <p>Address lookups yield such addresses for host names of the form {@code tcp://host} or
+ * {@code tcp://host:port}, the port given then overriding the one of the client. IPv6 addresses
+ * followed by a port are enclosed in brackets.</p>
+ */
+public final class TcpSocketAddress extends SocketAddress {
+    public static final String SCHEME = "tcp://";
+    private static final long serialVersionUID = 1L;
+
+    private final InetSocketAddress address;
+
+    /**
+     * @param address
+     *     the address to connect to, resolved or not
+     */
+    public TcpSocketAddress(final InetSocketAddress address) {
+        this.address = address;
+    }
+
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    static boolean hasScheme(final String hostname) {
+        return hostname != null && hostname.startsWith(SCHEME);
+    }
+
+    /**
+     * @param hostname
+     *     the host name, with the TCP scheme
+     * @param resolve
+     *     false to return an unresolved address
+     */
+    static TcpSocketAddress parse(final String hostname, final int defaultPort, final boolean resolve) throws UnknownHostException {
+        String host = hostname.substring(SCHEME.length());
+        int port = defaultPort;
+        final int colon = host.lastIndexOf(':');
+        // IPv6 addresses must be in brackets to be followed by a port
+        if (colon > host.lastIndexOf(']') && (host.indexOf(':') == colon || host.startsWith("["))) {
+            port = Integer.parseInt(host.substring(colon + 1));
+            host = host.substring(0, colon);
+        }
+        if (host.startsWith("[") && host.endsWith("]")) {
+            host = host.substring(1, host.length() - 1);
+        }
+        return new TcpSocketAddress(resolve
+                ? new InetSocketAddress(InetAddress.getByName(host), port)
+                : InetSocketAddress.createUnresolved(host, port));
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        return o instanceof TcpSocketAddress && address.equals(((TcpSocketAddress) o).address);
+    }
+
+    @Override
+    public int hashCode() {
+        return address.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return SCHEME + address;
+    }
+}
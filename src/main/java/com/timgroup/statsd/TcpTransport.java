@@ -0,0 +1,245 @@
+package com.timgroup.statsd;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends packets over TCP, each one terminated by a newline, for relays across networks where
+ * UDP loss is not acceptable.
+ *
+ * <p>Packets are appended to chunks of an outbound buffer, which are written with a single
+ * gathering write whenever the sender flushes, with Nagle's algorithm disabled. Writes are
+ * non-blocking and time out if the relay stops reading, so that the sender is not stalled. While the
+ * connection is down, chunks are kept up to the size of the outbound buffer, the oldest being
+ * dropped beyond that, and connecting again is attempted with an exponential backoff.</p>
+ *
+ * <p>When a write fails or times out, the chunks written in full are released and the one being
+ * written is dropped, since the relay may have received part of it. The following chunks are
+ * written once connected again, starting at a packet boundary.</p>
+ */
+final class TcpTransport implements Transport {
+    static final int DEFAULT_OUTBOUND_BUFFER_BYTES = 1024 * 1024;
+    static final int DEFAULT_SOCKET_BUFFER_BYTES = 512 * 1024;
+    private static final int CHUNK_BYTES = 64 * 1024;
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    static final int WRITE_TIMEOUT_MS = 5000;
+    private static final long MIN_BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long MAX_BACKOFF_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    private final StatsDClientErrorHandler handler;
+    private final int socketBufferBytes;
+    private final int writeTimeoutMs;
+    private final int maxChunks;
+    private final BufferPool chunkPool;
+    private final Deque<ByteBuffer> outbound = new ArrayDeque<ByteBuffer>();
+
+    private ByteBuffer current;
+    private SocketChannel channel;
+    private Selector selector;
+    private SocketAddress address;
+    private long backoffNanos;
+    private long nextConnectNanos;
+
+    /**
+     * @param maxPacketSizeBytes
+     *     the size of the largest packet written, to which a chunk is enlarged if needed
+     */
+    TcpTransport(final int outboundBufferBytes, final int socketBufferBytes, final int maxPacketSizeBytes,
+                 final StatsDClientErrorHandler handler) {
+        this(outboundBufferBytes, socketBufferBytes, maxPacketSizeBytes, WRITE_TIMEOUT_MS, handler);
+    }
+
+    /**
+     * @param writeTimeoutMs
+     *     the longest a flush waits for the relay to read
+     */
+    TcpTransport(final int outboundBufferBytes, final int socketBufferBytes, final int maxPacketSizeBytes,
+                 final int writeTimeoutMs, final StatsDClientErrorHandler handler) {
+        this.handler = handler;
+        this.socketBufferBytes = socketBufferBytes;
+        this.writeTimeoutMs = writeTimeoutMs;
+        final int chunkBytes = Math.max(CHUNK_BYTES, maxPacketSizeBytes + 1);
+        this.maxChunks = Math.max(2, outboundBufferBytes / chunkBytes);
+        this.chunkPool = new BufferPool(chunkBytes, maxChunks, true);
+    }
+
+    /**
+     * Appends the packet and a newline to the outbound buffer.
+     */
+    @Override
+    public void write(final ByteBuffer packet, final SocketAddress address) throws IOException {
+        if (!address.equals(this.address)) {
+            // the data buffered goes to the new address
+            close();
+            this.address = address;
+            nextConnectNanos = 0;
+        }
+        if (current == null || current.remaining() < packet.remaining() + 1) {
+            seal();
+            current = chunkPool.borrow();
+        }
+        current.put(packet);
+        current.put((byte) '\n');
+    }
+
+    @Override
+    public void write(final ByteBuffer[] packets, final int offset, final int length, final SocketAddress address) throws IOException {
+        for (int i = offset; i < offset + length; i++) {
+            write(packets[i], address);
+        }
+    }
+
+    /**
+     * Writes the outbound buffer, connecting first if needed and the backoff has elapsed.
+     */
+    @Override
+    public void flush() throws IOException {
+        seal();
+        if (outbound.isEmpty()) {
+            return;
+        }
+        if (channel == null && !connect()) {
+            return;
+        }
+        final ByteBuffer[] chunks = outbound.toArray(new ByteBuffer[outbound.size()]);
+        final ByteBuffer last = chunks[chunks.length - 1];
+        final long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(writeTimeoutMs);
+        try {
+            while (last.hasRemaining()) {
+                channel.write(chunks);
+                if (last.hasRemaining()) {
+                    awaitWritable(deadlineNanos);
+                }
+            }
+        } catch (final IOException e) {
+            close();
+            scheduleReconnect();
+            releaseWritten();
+            // the chunks are written in order, only the first one left may be written in part
+            final ByteBuffer partial = outbound.peekFirst();
+            if (partial != null && partial.position() > 0) {
+                outbound.removeFirst();
+                chunkPool.release(partial);
+            }
+            throw new IOException("Could not write to " + address + ", reconnecting", e);
+        }
+        releaseWritten();
+    }
+
+    private void releaseWritten() {
+        while (!outbound.isEmpty() && !outbound.peekFirst().hasRemaining()) {
+            chunkPool.release(outbound.removeFirst());
+        }
+    }
+
+    private void awaitWritable(final long deadlineNanos) throws IOException {
+        final long remainingMs = TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime());
+        if (remainingMs <= 0) {
+            throw new IOException("Timed out after " + writeTimeoutMs + " ms writing to " + address);
+        }
+        selector.select(remainingMs);
+        selector.selectedKeys().clear();
+    }
+
+    @Override
+    public boolean hasPending() {
+        return !outbound.isEmpty();
+    }
+
+    @Override
+    public int getMaxPacketSizeBytes() {
+        return 0;
+    }
+
+    @Override
+    public boolean supportsBatching() {
+        return true;
+    }
+
+    private void seal() {
+        if (current == null || current.position() == 0) {
+            return;
+        }
+        current.flip();
+        if (outbound.size() == maxChunks) {
+            final ByteBuffer dropped = outbound.removeFirst();
+            handler.handle(new IOException("Dropped " + dropped.remaining() + " bytes to " + address + ": outbound buffer full"));
+            chunkPool.release(dropped);
+        }
+        outbound.addLast(current);
+        current = null;
+    }
+
+    /**
+     * @return false if the backoff has not elapsed yet
+     */
+    private boolean connect() throws IOException {
+        final long now = System.nanoTime();
+        if (nextConnectNanos != 0 && now - nextConnectNanos < 0) {
+            return false;
+        }
+        if (!(address instanceof TcpSocketAddress)) {
+            throw new IOException("Cannot send over TCP to " + address);
+        }
+        SocketChannel opened = null;
+        try {
+            opened = SocketChannel.open();
+            opened.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            opened.setOption(StandardSocketOptions.SO_SNDBUF, socketBufferBytes);
+            opened.socket().connect(((TcpSocketAddress) address).getAddress(), CONNECT_TIMEOUT_MS);
+            opened.configureBlocking(false);
+            selector = Selector.open();
+            opened.register(selector, SelectionKey.OP_WRITE);
+        } catch (final Exception e) {
+            // an unresolved address is reported as an IllegalArgumentException
+            if (opened != null) {
+                opened.close();
+            }
+            closeSelector();
+            scheduleReconnect();
+            throw new IOException("Could not connect to " + address + ", retrying in "
+                    + TimeUnit.NANOSECONDS.toMillis(backoffNanos) + " ms", e);
+        }
+        channel = opened;
+        backoffNanos = 0;
+        nextConnectNanos = 0;
+        return true;
+    }
+
+    private void scheduleReconnect() {
+        backoffNanos = backoffNanos == 0 ? MIN_BACKOFF_NANOS : Math.min(MAX_BACKOFF_NANOS, backoffNanos * 2);
+        nextConnectNanos = System.nanoTime() + backoffNanos;
+    }
+
+    @Override
+    public void close() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (final IOException e) {
+                // the connection is dropped either way
+            }
+            channel = null;
+        }
+        closeSelector();
+    }
+
+    private void closeSelector() {
+        if (selector != null) {
+            try {
+                selector.close();
+            } catch (final IOException e) {
+                // nothing is registered with it anymore
+            }
+            selector = null;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.timgroup.statsd;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The timer summaries of a client, one for each context.
+ *
+ * <p>At most {@code maxContexts} contexts are tracked, so that a high cardinality of tags cannot
+ * grow the summaries, of up to a few kilobytes each, without bound: further contexts get
+ * {@link TimerSummary#NO_OP}. Summaries nothing was recorded into for {@link #MAX_IDLE_FLUSHES}
+ * flushes are evicted. An evicted summary still held by the application is tracked again on its
+ * next record, so that no time recorded through it is lost.</p>
+ */
+final class TimerSummaries {
+    static final int MAX_IDLE_FLUSHES = 3;
+
+    private final int maxContexts;
+    private final ConcurrentMap<ContextKey, TimerSummary> summaries = new ConcurrentHashMap<ContextKey, TimerSummary>();
+
+    /**
+     * Evicted summaries recorded into again while another summary took their context, flushed once
+     * with the next flush.
+     */
+    private final Queue<TimerSummary> orphans = new ConcurrentLinkedQueue<TimerSummary>();
+
+    /**
+     * @param maxContexts
+     *     the maximum number of contexts tracked
+     */
+    TimerSummaries(final int maxContexts) {
+        this.maxContexts = maxContexts;
+    }
+
+    /**
+     * @return the summary of the context, created if needed, or {@link TimerSummary#NO_OP} if the
+     *     maximum number of contexts are tracked already
+     */
+    TimerSummary get(final String aspect, final String[] tags) {
+        final ContextKey key = new ContextKey(aspect, tags);
+        TimerSummary summary = summaries.get(key);
+        if (summary == null) {
+            if (summaries.size() >= maxContexts) {
+                return TimerSummary.NO_OP;
+            }
+            final ContextKey copy = key.copy();
+            final TimerSummary created = new TimerSummary(this, copy);
+            summary = summaries.putIfAbsent(copy, created);
+            if (summary == null) {
+                summary = created;
+            }
+        }
+        return summary;
+    }
+
+    /**
+     * Sends the values recorded since the last flush, and evicts the idle summaries.
+     */
+    synchronized void flush(final StatsDClient client) {
+        for (final TimerSummary summary : summaries.values()) {
+            if (summary.flush(client)) {
+                summary.idleFlushes = 0;
+            } else if (++summary.idleFlushes >= MAX_IDLE_FLUSHES) {
+                summary.evicted = true;
+                summaries.remove(summary.key, summary);
+                // times recorded before the summary was marked
+                summary.flush(client);
+            }
+        }
+        TimerSummary orphan;
+        while ((orphan = orphans.poll()) != null) {
+            orphan.evicted = true;
+            orphan.flush(client);
+        }
+    }
+
+    /**
+     * Tracks an evicted summary again, once recorded into.
+     */
+    void readmit(final TimerSummary summary) {
+        synchronized (summary) {
+            if (!summary.evicted) {
+                return;
+            }
+            summary.evicted = false;
+            if (summaries.putIfAbsent(summary.key, summary) != null) {
+                orphans.add(summary);
+            }
+        }
+    }
+
+    /**
+     * @return the number of contexts tracked
+     */
+    int size() {
+        return summaries.size();
+    }
+}
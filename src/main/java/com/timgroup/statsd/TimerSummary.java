@@ -0,0 +1,123 @@
+package com.timgroup.statsd;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Rolls up the execution times of an operation into their count, sum, minimum and maximum, which
+ * the client sends once per flush interval instead of every single value.
+ *
+ * <p>Values are recorded without locking into cells striped by thread, so that concurrent callers
+ * seldom contend. A value recorded while the summary is being flushed may be split across two
+ * consecutive intervals.</p>
+ *
+ * <p>{@link #NO_OP} ignores the values recorded, and is returned once the client tracks as many
+ * summaries as it may.</p>
+ *
+ * @see StatsDClient#timerSummary(String, String...)
+ */
+public final class TimerSummary {
+    private static final int MAX_STRIPES = 64;
+
+    /**
+     * Each stripe spans a cache line of 8 longs, so that stripes updated by different threads
+     * do not share cache lines.
+     */
+    private static final int STRIDE = 8;
+    private static final int COUNT = 0;
+    private static final int SUM = 1;
+    private static final int MIN = 2;
+    private static final int MAX = 3;
+
+    /**
+     * A summary ignoring the values recorded.
+     */
+    public static final TimerSummary NO_OP = new TimerSummary();
+
+    private final TimerSummaries owner;
+    final ContextKey key;
+    private final int mask;
+    private final AtomicLongArray cells;
+
+    /**
+     * Only read and written by the thread flushing the summaries.
+     */
+    int idleFlushes;
+    volatile boolean evicted;
+
+    private TimerSummary() {
+        owner = null;
+        key = null;
+        mask = 0;
+        cells = new AtomicLongArray(0);
+    }
+
+    TimerSummary(final TimerSummaries owner, final ContextKey key) {
+        this.owner = owner;
+        this.key = key;
+        int stripes = 1;
+        while (stripes < Runtime.getRuntime().availableProcessors() && stripes < MAX_STRIPES) {
+            stripes <<= 1;
+        }
+        this.mask = stripes - 1;
+        this.cells = new AtomicLongArray(stripes * STRIDE);
+        for (int stripe = 0; stripe < stripes; stripe++) {
+            cells.set(stripe * STRIDE + MIN, Long.MAX_VALUE);
+            cells.set(stripe * STRIDE + MAX, Long.MIN_VALUE);
+        }
+    }
+
+    /**
+     * Records an execution time.
+     *
+     * <p>This method is non-blocking and is guaranteed not to throw an exception.</p>
+     *
+     * @param timeInMs
+     *     the time in milliseconds
+     */
+    public void record(final long timeInMs) {
+        if (owner == null) {
+            return;
+        }
+        final int base = ((int) Thread.currentThread().getId() & mask) * STRIDE;
+        cells.incrementAndGet(base + COUNT);
+        cells.addAndGet(base + SUM, timeInMs);
+        long min;
+        while (timeInMs < (min = cells.get(base + MIN)) && !cells.compareAndSet(base + MIN, min, timeInMs)) { }
+        long max;
+        while (timeInMs > (max = cells.get(base + MAX)) && !cells.compareAndSet(base + MAX, max, timeInMs)) { }
+        if (evicted) {
+            owner.readmit(this);
+        }
+    }
+
+    /**
+     * Sends the count and sum as counters, and the minimum and maximum as gauges, of the values
+     * recorded since the last flush. Nothing is sent if no value was recorded.
+     *
+     * @return true if values were recorded since the last flush
+     */
+    boolean flush(final StatsDClient client) {
+        long count = 0;
+        long sum = 0;
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (int base = 0; base < cells.length(); base += STRIDE) {
+            count += cells.getAndSet(base + COUNT, 0);
+            sum += cells.getAndSet(base + SUM, 0);
+            min = Math.min(min, cells.getAndSet(base + MIN, Long.MAX_VALUE));
+            max = Math.max(max, cells.getAndSet(base + MAX, Long.MIN_VALUE));
+        }
+        if (count == 0) {
+            return false;
+        }
+        final String aspect = key.getAspect();
+        final String[] tags = key.getTags();
+        client.count(aspect + ".count", count, tags);
+        client.count(aspect + ".sum", sum, tags);
+        if (min <= max) {
+            client.gauge(aspect + ".min", min, tags);
+            client.gauge(aspect + ".max", max, tags);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,150 @@
+package com.timgroup.statsd;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs periodic tasks from a single thread, using a hashed timing wheel.
+ *
+ * <p>Tasks are spread over a fixed number of buckets by deadline, so scheduling, running and
+ * cancelling are constant time whatever the number of tasks, and all the tasks due on a tick run
+ * back to back. Deadlines are rounded up to the tick duration. The thread is only started when
+ * the first task is scheduled.</p>
+ */
+final class TimerWheel implements Runnable {
+    private static final int WHEEL_SIZE = 512;
+
+    private final long tickNanos;
+    private final List<List<Timeout>> buckets = new ArrayList<List<Timeout>>(WHEEL_SIZE);
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<Timeout>();
+    private final ThreadFactory threadFactory;
+    private final StatsDClientErrorHandler handler;
+    private final AtomicBoolean started = new AtomicBoolean();
+
+    private volatile boolean stopped;
+    private volatile Thread thread;
+    private long tick;
+
+    TimerWheel(final long tickMs, final ThreadFactory threadFactory, final StatsDClientErrorHandler handler) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMs));
+        this.threadFactory = threadFactory;
+        this.handler = handler;
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            buckets.add(new ArrayList<Timeout>());
+        }
+    }
+
+    /**
+     * Runs the task every period, starting one period from now.
+     */
+    Timeout schedule(final Runnable task, final long periodMs) {
+        final long periodTicks = Math.max(1, (TimeUnit.MILLISECONDS.toNanos(periodMs) + tickNanos - 1) / tickNanos);
+        final Timeout timeout = new Timeout(task, periodTicks);
+        pending.add(timeout);
+        if (!stopped && !started.get() && started.compareAndSet(false, true)) {
+            thread = threadFactory.newThread(this);
+            thread.start();
+        }
+        return timeout;
+    }
+
+    /**
+     * Stops the wheel thread, and waits for the tasks running to complete.
+     */
+    void stop() {
+        stopped = true;
+        final Thread current = thread;
+        if (current != null && current != Thread.currentThread()) {
+            current.interrupt();
+            try {
+                current.join(TimeUnit.SECONDS.toMillis(1));
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        final long startNanos = System.nanoTime();
+        while (!stopped) {
+            final long sleepNanos = startNanos + (tick + 1) * tickNanos - System.nanoTime();
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (final InterruptedException e) {
+                    continue;
+                }
+            }
+            tick++;
+            transferPending();
+            expire(buckets.get((int) (tick % WHEEL_SIZE)));
+        }
+    }
+
+    private void transferPending() {
+        Timeout timeout;
+        while ((timeout = pending.poll()) != null) {
+            if (!timeout.cancelled) {
+                timeout.deadline = tick + timeout.periodTicks;
+                place(timeout);
+            }
+        }
+    }
+
+    private void expire(final List<Timeout> bucket) {
+        if (bucket.isEmpty()) {
+            return;
+        }
+        final List<Timeout> due = new ArrayList<Timeout>();
+        for (final Iterator<Timeout> it = bucket.iterator(); it.hasNext(); ) {
+            final Timeout timeout = it.next();
+            if (timeout.cancelled) {
+                it.remove();
+            } else if (timeout.deadline <= tick) {
+                it.remove();
+                due.add(timeout);
+            }
+        }
+        for (final Timeout timeout : due) {
+            try {
+                timeout.task.run();
+            } catch (final Exception e) {
+                handler.handle(e);
+            }
+            if (!timeout.cancelled) {
+                timeout.deadline = tick + timeout.periodTicks;
+                place(timeout);
+            }
+        }
+    }
+
+    private void place(final Timeout timeout) {
+        buckets.get((int) (timeout.deadline % WHEEL_SIZE)).add(timeout);
+    }
+
+    static final class Timeout {
+        private final Runnable task;
+        private final long periodTicks;
+        private long deadline;
+        private volatile boolean cancelled;
+
+        private Timeout(final Runnable task, final long periodTicks) {
+            this.task = task;
+            this.periodTicks = periodTicks;
+        }
+
+        /**
+         * Prevents any further run of the task; the bucket entry is dropped on its next tick.
+         */
+        void cancel() {
+            cancelled = true;
+        }
+    }
+}
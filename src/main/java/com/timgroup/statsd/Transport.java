@@ -0,0 +1,84 @@
+package com.timgroup.statsd;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Sends the packets built by the client to the StatsD server.
+ *
+ * <p>The client picks a transport from the address of the server and its settings, unless one is
+ * given with {@link NonBlockingStatsDClient.Builder#withTransport(Transport)}. A packet holds one
+ * or more messages separated by newlines, without a trailing newline.</p>
+ *
+ * <p>Transports are only called from the single sender thread of the client, which writes the
+ * packets as they are built, flushes whenever its queue runs empty, and closes the transport
+ * when the client stops. A transport may hold packets back until it is flushed, for instance to
+ * send them in batches; one that still holds packets after a flush, because it could not send them
+ * without blocking, reports it with {@link #hasPending()} so that the sender flushes it again
+ * shortly.</p>
+ */
+public interface Transport extends Closeable {
+
+    /**
+     * Sends, or queues, the packet between the position and the limit of the buffer. The buffer
+     * may be reused as soon as this method returns.
+     *
+     * @param packet
+     *     the packet
+     * @param address
+     *     the address of the StatsD server, as last looked up
+     * @throws IOException
+     *     if the packet could not be sent, which is reported to the error handler of the client
+     */
+    void write(ByteBuffer packet, SocketAddress address) throws IOException;
+
+    /**
+     * Sends, or queues, several packets to the same address, as {@link #write(ByteBuffer, SocketAddress)}
+     * does for each one.
+     *
+     * @param packets
+     *     the packets
+     * @param offset
+     *     the index of the first packet to write
+     * @param length
+     *     the number of packets to write
+     * @param address
+     *     the address of the StatsD server
+     * @throws IOException
+     *     if any packet could not be sent
+     */
+    void write(ByteBuffer[] packets, int offset, int length, SocketAddress address) throws IOException;
+
+    /**
+     * Sends the packets held back, as far as possible without blocking.
+     *
+     * @throws IOException
+     *     if the packets could not be sent
+     */
+    void flush() throws IOException;
+
+    /**
+     * @return true if packets are still held back after a flush
+     */
+    boolean hasPending();
+
+    /**
+     * @return the size of the largest packet this transport can send, or 0 if it has no limit of
+     *     its own, in which case the packet size set on the client applies
+     */
+    int getMaxPacketSizeBytes();
+
+    /**
+     * @return true if writes are held back and sent together on flush, in which case writing
+     *     several packets before flushing saves system calls
+     */
+    boolean supportsBatching();
+
+    /**
+     * Releases the resources of the transport, dropping any packet still held back.
+     */
+    @Override
+    void close();
+}
@@ -0,0 +1,57 @@
+package com.timgroup.statsd;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * The options of the sockets sending over UDP.
+ */
+final class UdpOptions {
+    private final int sendBufferBytes;
+    private final int trafficClass;
+    private final boolean nonBlocking;
+
+    /**
+     * @param sendBufferBytes
+     *     the size of the send buffer, 0 or less for the system default
+     * @param trafficClass
+     *     the type of service byte of IPv4 packets, or the traffic class of IPv6 packets, such as a
+     *     DSCP value shifted left by two bits, 0 for the system default
+     * @param nonBlocking
+     *     true to drop the packets the send buffer cannot take, instead of waiting for room
+     */
+    UdpOptions(final int sendBufferBytes, final int trafficClass, final boolean nonBlocking) {
+        this.sendBufferBytes = sendBufferBytes;
+        this.trafficClass = trafficClass;
+        this.nonBlocking = nonBlocking;
+    }
+
+    int getSendBufferBytes() {
+        return sendBufferBytes;
+    }
+
+    int getTrafficClass() {
+        return trafficClass;
+    }
+
+    boolean isNonBlocking() {
+        return nonBlocking;
+    }
+
+    /**
+     * @throws IOException
+     *     if an option could not be set
+     */
+    void apply(final DatagramChannel channel) throws IOException {
+        if (sendBufferBytes > 0) {
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, sendBufferBytes);
+        }
+        if (trafficClass > 0) {
+            channel.setOption(StandardSocketOptions.IP_TOS, trafficClass);
+        }
+        if (nonBlocking) {
+            channel.configureBlocking(false);
+        }
+    }
+}
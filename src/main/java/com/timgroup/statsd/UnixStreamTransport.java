@@ -0,0 +1,213 @@
+package com.timgroup.statsd;
+
+import jnr.unixsocket.UnixSocketAddress;
+import jnr.unixsocket.UnixSocketChannel;
+import jnr.unixsocket.UnixSocketOptions;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends packets through a unix stream socket, each one framed by its length as a 4-byte little
+ * endian integer.
+ *
+ * <p>Packets are batched until the batch buffer is full, or the sender flushes, then written
+ * with a single gathering write of the frame headers and payloads. A stream socket is not limited
+ * by the maximum datagram size, and blocks the sender when the agent lags behind instead of
+ * dropping packets.</p>
+ *
+ * <p>When a write fails, the batch is dropped and the connection closed, since a partial frame
+ * would corrupt the stream. The socket is connected again on the next flush, at most once per
+ * reconnection interval.</p>
+ *
+ * <p>On Java 16 and later, the socket is a channel of the JDK, whose gathering writes are single
+ * system calls; as it has no send timeout, it is written to in non-blocking mode, waiting up to
+ * the timeout for the socket to be writable. Before Java 16, it is a channel of jnr-unixsocket.</p>
+ */
+final class UnixStreamTransport implements Transport {
+    static final int DEFAULT_BATCH_BYTES = 64 * 1024;
+    private static final int HEADER_BYTES = 4;
+
+    /**
+     * Keeps the number of buffers of a gathering write below the usual {@code IOV_MAX} of 1024.
+     */
+    private static final int MAX_FRAMES = 512;
+    private static final long RECONNECT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final int timeout;
+    private final ByteBuffer data;
+    private final ByteBuffer headers;
+    private final ByteBuffer[] frames;
+
+    private SocketChannel channel;
+    private Selector selector;
+    private SocketAddress address;
+    private long connectedNanos;
+    private int frameCount;
+
+    /**
+     * @param timeout
+     *     the send timeout in milliseconds, 0 to block until the agent reads
+     */
+    UnixStreamTransport(final int batchBytes, final int timeout) {
+        this.timeout = timeout;
+        data = BufferPool.allocateAligned(batchBytes);
+        headers = ByteBuffer.allocateDirect(MAX_FRAMES * HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        frames = new ByteBuffer[MAX_FRAMES * 2];
+    }
+
+    /**
+     * Adds the packet to the batch, writing the batch first if the packet does not fit or the
+     * address changed.
+     */
+    @Override
+    public void write(final ByteBuffer packet, final SocketAddress address) throws IOException {
+        if (!address.equals(this.address)) {
+            flush();
+            close();
+            this.address = address;
+        }
+        if (frameCount == MAX_FRAMES || data.remaining() < packet.remaining()) {
+            flush();
+        }
+        if (data.remaining() < packet.remaining()) {
+            throw new IOException("Packet of " + packet.remaining() + " bytes larger than the batch buffer");
+        }
+        headers.putInt(frameCount * HEADER_BYTES, packet.remaining());
+        headers.limit((frameCount + 1) * HEADER_BYTES);
+        headers.position(frameCount * HEADER_BYTES);
+        frames[frameCount * 2] = headers.slice();
+
+        final int start = data.position();
+        data.put(packet);
+        final ByteBuffer payload = data.duplicate();
+        payload.limit(data.position());
+        payload.position(start);
+        frames[frameCount * 2 + 1] = payload;
+        frameCount++;
+    }
+
+    @Override
+    public void write(final ByteBuffer[] packets, final int offset, final int length, final SocketAddress address) throws IOException {
+        for (int i = offset; i < offset + length; i++) {
+            write(packets[i], address);
+        }
+    }
+
+    /**
+     * Writes the batch, connecting first if needed.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (frameCount == 0) {
+            return;
+        }
+        try {
+            final SocketChannel connected = connect();
+            final ByteBuffer last = frames[frameCount * 2 - 1];
+            while (last.hasRemaining()) {
+                connected.write(frames, 0, frameCount * 2);
+                if (last.hasRemaining() && selector != null) {
+                    awaitWritable();
+                }
+            }
+        } catch (final IOException e) {
+            close();
+            throw new IOException("Dropped " + frameCount + " packets to " + address, e);
+        } finally {
+            for (int i = 0; i < frameCount * 2; i++) {
+                frames[i] = null;
+            }
+            frameCount = 0;
+            data.clear();
+        }
+    }
+
+    @Override
+    public boolean hasPending() {
+        return false;
+    }
+
+    @Override
+    public int getMaxPacketSizeBytes() {
+        return 0;
+    }
+
+    @Override
+    public boolean supportsBatching() {
+        return true;
+    }
+
+    private void awaitWritable() throws IOException {
+        if (selector.select(timeout) == 0) {
+            throw new IOException("Timed out after " + timeout + " ms writing to " + address);
+        }
+        selector.selectedKeys().clear();
+    }
+
+    private SocketChannel connect() throws IOException {
+        if (channel != null) {
+            return channel;
+        }
+        if (!(address instanceof UnixSocketAddress)) {
+            throw new IOException("Cannot send through a unix stream socket to " + address);
+        }
+        final long now = System.nanoTime();
+        if (connectedNanos != 0 && now - connectedNanos < RECONNECT_INTERVAL_NANOS) {
+            throw new IOException("Not connected to " + address);
+        }
+        connectedNanos = now;
+        if (JdkUnixSockets.isAvailable()) {
+            final SocketChannel opened = JdkUnixSockets.openStream(((UnixSocketAddress) address).path());
+            if (timeout > 0) {
+                try {
+                    opened.configureBlocking(false);
+                    selector = Selector.open();
+                    opened.register(selector, SelectionKey.OP_WRITE);
+                } catch (final IOException e) {
+                    opened.close();
+                    closeSelector();
+                    throw e;
+                }
+            }
+            channel = opened;
+            return opened;
+        }
+        final UnixSocketChannel opened = UnixSocketChannel.open((UnixSocketAddress) address);
+        if (timeout > 0) {
+            opened.setOption(UnixSocketOptions.SO_SNDTIMEO, timeout);
+        }
+        channel = opened;
+        return opened;
+    }
+
+    @Override
+    public void close() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (final IOException e) {
+                // the connection is dropped either way
+            }
+            channel = null;
+        }
+        closeSelector();
+    }
+
+    private void closeSelector() {
+        if (selector != null) {
+            try {
+                selector.close();
+            } catch (final IOException e) {
+                // nothing is registered with it anymore
+            }
+            selector = null;
+        }
+    }
+}
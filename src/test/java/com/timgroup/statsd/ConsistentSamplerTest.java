@@ -0,0 +1,60 @@
+package com.timgroup.statsd;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ConsistentSamplerTest {
+
+    @Test
+    public void keeps_everything_at_full_rate() {
+        final ConsistentSampler sampler = new ConsistentSampler(1);
+        for (long key = -1000; key < 1000; key++) {
+            assertTrue(sampler.isSampled(key));
+        }
+        assertTrue(sampler.isSampled(Long.MIN_VALUE));
+        assertTrue(sampler.isSampled(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void drops_everything_at_zero_rate() {
+        final ConsistentSampler sampler = new ConsistentSampler(0);
+        for (long key = -1000; key < 1000; key++) {
+            assertFalse(sampler.isSampled(key));
+        }
+        assertFalse(ConsistentSampler.isSampled(42, Double.NaN));
+    }
+
+    @Test
+    public void decision_only_depends_on_key_and_rate() {
+        final ConsistentSampler sampler = new ConsistentSampler(0.3);
+        for (long key = 0; key < 1000; key++) {
+            assertEquals(sampler.isSampled(key), sampler.isSampled(key));
+            assertEquals(sampler.isSampled(key), ConsistentSampler.isSampled(key, 0.3));
+        }
+    }
+
+    @Test
+    public void keys_kept_at_lower_rate_are_kept_at_higher_rate() {
+        for (long key = 0; key < 1000; key++) {
+            if (ConsistentSampler.isSampled(key, 0.1)) {
+                assertTrue(ConsistentSampler.isSampled(key, 0.5));
+            }
+        }
+    }
+
+    @Test
+    public void keeps_the_requested_fraction_of_sequential_keys() {
+        final ConsistentSampler sampler = new ConsistentSampler(0.25);
+        final int total = 100000;
+        int kept = 0;
+        for (long key = 0; key < total; key++) {
+            if (sampler.isSampled(key)) {
+                kept++;
+            }
+        }
+        assertEquals(0.25, (double) kept / total, 0.01);
+    }
+}
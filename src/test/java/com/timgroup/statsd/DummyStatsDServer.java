@@ -33,7 +33,7 @@ final class DummyStatsDServer {
         Thread thread = new Thread(new Runnable() {
             @Override
             public void run() {
-                final ByteBuffer packet = ByteBuffer.allocate(1500);
+                final ByteBuffer packet = ByteBuffer.allocate(8192);
                 while(server.isOpen()) {
                     if (freeze) {
                         try {
@@ -6,21 +6,43 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 import org.junit.Rule;
 
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
 import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasItems;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import org.junit.contrib.java.lang.system.EnvironmentVariables;
 
 
@@ -515,6 +537,517 @@ public class NonBlockingStatsDClientTest {
         assertThat(server.messagesReceived(), contains("top.level.value:423|g"));
     }
 
+    @Test(timeout = 5000L)
+    public void samples_with_caller_provided_key() throws Exception {
+        long keptKey = 0;
+        while (!ConsistentSampler.isSampled(keptKey, 0.5)) {
+            keptKey++;
+        }
+        long droppedKey = 0;
+        while (ConsistentSampler.isSampled(droppedKey, 0.5)) {
+            droppedKey++;
+        }
+        final long[] currentKey = {droppedKey};
+        final NonBlockingStatsDClient keyed_client = NonBlockingStatsDClient.builder()
+                .withPrefix("my.prefix")
+                .withHostname("localhost")
+                .withPort(STATSD_SERVER_PORT)
+                .withSamplingKeySource(new SamplingKeySource() {
+                    @Override public long samplingKey() {
+                        return currentKey[0];
+                    }
+                })
+                .build();
+        try {
+            for (int i = 0; i < 10; i++) {
+                keyed_client.count("dropped", 1, 0.5);
+            }
+            currentKey[0] = keptKey;
+            keyed_client.count("kept", 1, 0.5);
+            server.waitForMessage();
+
+            assertThat(server.messagesReceived(), contains("my.prefix.kept:1|c|@0.500000"));
+        } finally {
+            keyed_client.stop();
+        }
+    }
+
+    @Test(timeout = 5000L)
+    public void rate_limits_contexts() throws Exception {
+        final NonBlockingStatsDClient limited_client = NonBlockingStatsDClient.builder()
+                .withPrefix("my.prefix")
+                .withHostname("localhost")
+                .withPort(STATSD_SERVER_PORT)
+                .withRateLimit(2, 1)
+                .build();
+        try {
+            for (int i = 0; i < 5; i++) {
+                limited_client.count("limited", 1);
+            }
+            limited_client.count("other", 1, "foo:bar");
+            while (server.messagesReceived().size() < 2) {
+                Thread.sleep(50L);
+            }
+            assertThat(server.messagesReceived(), contains("my.prefix.limited:1|c", "my.prefix.other:1|c|#foo:bar"));
+            server.clear();
+
+            Thread.sleep(600L);
+            limited_client.count("limited", 1);
+            server.waitForMessage();
+
+            assertThat(server.messagesReceived(), contains("my.prefix.limited:1|c|@0.200000"));
+        } finally {
+            limited_client.stop();
+        }
+    }
+
+    @Test(timeout = 5000L)
+    public void rate_limits_gauges_without_folding_into_sample_rate() throws Exception {
+        final NonBlockingStatsDClient limited_client = NonBlockingStatsDClient.builder()
+                .withPrefix("my.prefix")
+                .withHostname("localhost")
+                .withPort(STATSD_SERVER_PORT)
+                .withRateLimit(2, 1)
+                .build();
+        try {
+            for (int i = 0; i < 5; i++) {
+                limited_client.gauge("limited", i);
+            }
+            server.waitForMessage();
+            assertThat(server.messagesReceived(), contains("my.prefix.limited:0|g"));
+            server.clear();
+
+            Thread.sleep(600L);
+            limited_client.gauge("limited", 5);
+            server.waitForMessage();
+
+            assertThat(server.messagesReceived(), contains("my.prefix.limited:5|g"));
+        } finally {
+            limited_client.stop();
+        }
+    }
+
+    @Test(timeout = 5000L)
+    public void sends_monotonic_count_deltas() throws Exception {
+        client.monotonicCount("mytotal", 100, "foo:bar");
+        client.monotonicCount("mytotal", 130, "foo:bar");
+        client.monotonicCount("mytotal", 130, "foo:bar");
+        client.monotonicCount("mytotal", 20, "foo:bar");
+        while (server.messagesReceived().size() < 2) {
+            Thread.sleep(50L);
+        }
+
+        assertThat(server.messagesReceived(), contains("my.prefix.mytotal:30|c|#foo:bar", "my.prefix.mytotal:20|c|#foo:bar"));
+    }
+
+    @Test(timeout = 5000L)
+    public void bounds_monotonic_count_contexts() throws Exception {
+        final MonotonicCounters counters = new MonotonicCounters(true, 2);
+        counters.update("first", 100, null);
+        counters.update("second", 100, null);
+        counters.update("third", 100, null);
+        assertEquals(0, counters.update("third", 110, null));
+        assertEquals(2, counters.size());
+
+        for (int i = 1; i < MonotonicCounters.MAX_IDLE_FLUSHES; i++) {
+            counters.update("first", 100 + i, null);
+            counters.flush(new NoOpStatsDClient());
+        }
+        counters.flush(new NoOpStatsDClient());
+        assertEquals(1, counters.size());
+
+        // the evicted context starts over from a new baseline
+        counters.update("second", 200, null);
+        assertEquals(2, counters.size());
+    }
+
+    @Test(timeout = 5000L)
+    public void bounds_timer_summary_contexts() throws Exception {
+        final TimerSummaries summaries = new TimerSummaries(2);
+        final TimerSummary first = summaries.get("first", null);
+        summaries.get("second", null);
+        assertTrue(summaries.get("third", null) == TimerSummary.NO_OP);
+        assertEquals(2, summaries.size());
+
+        for (int i = 1; i < TimerSummaries.MAX_IDLE_FLUSHES; i++) {
+            summaries.get("second", null).record(10);
+            summaries.flush(new NoOpStatsDClient());
+        }
+        summaries.flush(new NoOpStatsDClient());
+        assertEquals(1, summaries.size());
+
+        // an evicted summary still held is tracked again once recorded into
+        first.record(10);
+        assertEquals(2, summaries.size());
+        assertTrue(summaries.get("first", null) == first);
+        assertTrue(new NoOpStatsDClient().timerSummary("mytimer") == TimerSummary.NO_OP);
+    }
+
+    @Test(timeout = 5000L)
+    public void sends_aggregated_monotonic_count_deltas() throws Exception {
+        final NonBlockingStatsDClient aggregating_client = NonBlockingStatsDClient.builder()
+                .withPrefix("my.prefix")
+                .withHostname("localhost")
+                .withPort(STATSD_SERVER_PORT)
+                .withAggregationFlushInterval(500)
+                .build();
+        try {
+            aggregating_client.monotonicCount("mytotal", 100);
+            aggregating_client.monotonicCount("mytotal", 110);
+            aggregating_client.monotonicCount("mytotal", 125);
+            server.waitForMessage();
+
+            assertThat(server.messagesReceived(), contains("my.prefix.mytotal:25|c"));
+        } finally {
+            aggregating_client.stop();
+        }
+    }
+
+    @Test(timeout = 5000L)
+    public void polls_registered_gauges() throws Exception {
+        final LongGaugeSupplier poolSize = new LongGaugeSupplier() {
+            @Override public long getAsLong() {
+                return 42;
+            }
+        };
+        final DoubleGaugeSupplier hitRatio = new DoubleGaugeSupplier() {
+            @Override public double getAsDouble() {
+                return 0.5;
+            }
+        };
+        client.registerGauge("pool.size", poolSize, 200, "pool:main");
+        client.registerGauge("cache.hit_ratio", hitRatio, 200);
+        try {
+            while (server.messagesReceived().size() < 2) {
+                Thread.sleep(50L);
+            }
+        } finally {
+            client.unregisterGauge("pool.size", "pool:main");
+            client.unregisterGauge("cache.hit_ratio");
+        }
+        assertThat(server.messagesReceived(), hasItems("my.prefix.pool.size:42|g|#pool:main", "my.prefix.cache.hit_ratio:0.5|g"));
+        Thread.sleep(300L);
+        server.clear();
+        Thread.sleep(300L);
+
+        assertTrue(server.messagesReceived().isEmpty());
+    }
+
+    @Test(timeout = 5000L)
+    public void keeps_polling_inline_gauge_suppliers_after_gc() throws Exception {
+        client.registerGauge("queue.depth", new LongGaugeSupplier() {
+            @Override public long getAsLong() {
+                return 7;
+            }
+        }, 100);
+        try {
+            System.gc();
+            Thread.sleep(200L);
+            server.clear();
+            System.gc();
+
+            while (server.messagesReceived().isEmpty()) {
+                Thread.sleep(50L);
+            }
+            assertThat(server.messagesReceived(), hasItems("my.prefix.queue.depth:7|g"));
+        } finally {
+            client.unregisterGauge("queue.depth");
+        }
+    }
+
+    @Test(timeout = 5000L)
+    public void sends_timer_summaries() throws Exception {
+        final NonBlockingStatsDClient summarizing_client = NonBlockingStatsDClient.builder()
+                .withPrefix("my.prefix")
+                .withHostname("localhost")
+                .withPort(STATSD_SERVER_PORT)
+                .withAggregationFlushInterval(500)
+                .withTimerSummaries("mytimer")
+                .build();
+        try {
+            summarizing_client.recordExecutionTime("mytimer", 10, "foo:bar");
+            summarizing_client.time("mytimer", 30, "foo:bar");
+            summarizing_client.timerSummary("mytimer", "foo:bar").record(20);
+            summarizing_client.recordExecutionTime("othertimer", 5);
+            while (server.messagesReceived().size() < 5) {
+                Thread.sleep(50L);
+            }
+
+            assertThat(server.messagesReceived(), contains(
+                    "my.prefix.othertimer:5|ms",
+                    "my.prefix.mytimer.count:3|c|#foo:bar",
+                    "my.prefix.mytimer.sum:60|c|#foo:bar",
+                    "my.prefix.mytimer.min:10|g|#foo:bar",
+                    "my.prefix.mytimer.max:30|g|#foo:bar"));
+        } finally {
+            summarizing_client.stop();
+        }
+    }
+
+    @Test(timeout = 5000L)
+    public void sends_through_connected_channel() throws Exception {
+        final AtomicInteger lookups = new AtomicInteger();
+        final Callable<SocketAddress> lookup = NonBlockingStatsDClient.volatileAddressResolution("localhost", STATSD_SERVER_PORT);
+        final NonBlockingStatsDClient connected_client = NonBlockingStatsDClient.builder()
+                .withPrefix("my.prefix")
+                .withAddressLookup(new Callable<SocketAddress>() {
+                    @Override public SocketAddress call() throws Exception {
+                        lookups.incrementAndGet();
+                        return lookup.call();
+                    }
+                })
+                .withConnectedChannel(true)
+                .build();
+        try {
+            for (int i = 0; i < 10; i++) {
+                connected_client.gauge("mygauge", i);
+            }
+            while (server.messagesReceived().size() < 10) {
+                Thread.sleep(50L);
+            }
+
+            assertThat(server.messagesReceived().get(9), equalTo("my.prefix.mygauge:9|g"));
+            // once by the client to open the channel, once by the sender to connect it
+            assertEquals(2, lookups.get());
+        } finally {
+            connected_client.stop();
+        }
+    }
+
+    @Test(timeout = 5000L)
+    public void sends_batches_of_packets() throws Exception {
+        final NonBlockingStatsDClient batching_client = NonBlockingStatsDClient.builder()
+                .withPrefix("my.prefix")
+                .withHostname("localhost")
+                .withPort(STATSD_SERVER_PORT)
+                // one metric per packet, so that all the packets have the same size
+                .withMaxPacketSizeBytes("my.prefix.mygauge:1|g".length() + 1)
+                .withBatchSize(16)
+                .withSegmentationOffload(true)
+                .build();
+        try {
+            for (int i = 0; i < 100; i++) {
+                batching_client.gauge("mygauge", 1);
+            }
+            while (server.messagesReceived().size() < 100) {
+                Thread.sleep(50L);
+            }
+
+            assertThat(server.messagesReceived(), hasItems("my.prefix.mygauge:1|g"));
+            assertEquals(100, server.messagesReceived().size());
+        } finally {
+            batching_client.stop();
+        }
+    }
+
+    @Test(timeout = 5000L)
+    public void sends_over_tcp_once_connected() throws Exception {
+        final ServerSocket probe = new ServerSocket(0);
+        final int port = probe.getLocalPort();
+        probe.close();
+
+        final NonBlockingStatsDClient tcp_client = NonBlockingStatsDClient.builder()
+                .withPrefix("my.prefix")
+                .withHostname("tcp://localhost")
+                .withPort(port)
+                .build();
+        try {
+            // buffered until the relay accepts connections
+            tcp_client.gauge("mygauge", 1);
+            tcp_client.gauge("mygauge", 2);
+            Thread.sleep(200L);
+
+            final ServerSocket relay = new ServerSocket();
+            relay.setReuseAddress(true);
+            relay.bind(new InetSocketAddress("localhost", port));
+            try {
+                final Socket connection = relay.accept();
+                final BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), "UTF-8"));
+
+                assertEquals("my.prefix.mygauge:1|g", reader.readLine());
+                assertEquals("my.prefix.mygauge:2|g", reader.readLine());
+                connection.close();
+            } finally {
+                relay.close();
+            }
+        } finally {
+            tcp_client.stop();
+        }
+    }
+
+    @Test(timeout = 5000L)
+    public void drops_partly_written_tcp_chunk_when_relay_stops_reading() throws Exception {
+        final ServerSocket relay = new ServerSocket();
+        relay.setReuseAddress(true);
+        relay.setReceiveBufferSize(4096);
+        relay.bind(new InetSocketAddress("localhost", 0));
+        final TcpTransport transport = new TcpTransport(1024 * 1024, 4096, 32, 500, new StatsDClientErrorHandler() {
+            @Override public void handle(final Exception exception) {}
+        });
+        try {
+            final SocketAddress address = TcpSocketAddress.parse("tcp://localhost", relay.getLocalPort(), true);
+            final byte[] packet = "my.prefix.mygauge:1|g".getBytes(StandardCharsets.UTF_8);
+            for (int i = 0; i < 20000; i++) {
+                transport.write(ByteBuffer.wrap(packet), address);
+            }
+            // the connection is never accepted, thus never read
+            final long start = System.nanoTime();
+            try {
+                transport.flush();
+                fail("flushed to a relay not reading");
+            } catch (final IOException e) {
+                // timed out
+            }
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+            assertTrue(transport.hasPending());
+
+            // written again from a packet boundary once connected again
+            Thread.sleep(150L);
+            final BlockingQueue<String> lines = new LinkedBlockingQueue<String>();
+            final Thread reader = new Thread(new Runnable() {
+                @Override public void run() {
+                    try {
+                        relay.accept().close();
+                        final Socket connection = relay.accept();
+                        final BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream(), "UTF-8"));
+                        String line;
+                        while ((line = in.readLine()) != null) {
+                            lines.add(line);
+                        }
+                    } catch (final IOException e) {
+                        // relay closed
+                    }
+                }
+            });
+            reader.start();
+            transport.flush();
+            assertEquals("my.prefix.mygauge:1|g", lines.poll(1, TimeUnit.SECONDS));
+        } finally {
+            transport.close();
+            relay.close();
+        }
+    }
+
+    @Test(timeout = 5000L)
+    public void sends_through_given_transport() throws Exception {
+        final BlockingQueue<String> packets = new LinkedBlockingQueue<String>();
+        final CountDownLatch closed = new CountDownLatch(1);
+        final Transport transport = new Transport() {
+            @Override public void write(final ByteBuffer packet, final SocketAddress address) {
+                packets.add(StandardCharsets.UTF_8.decode(packet).toString());
+            }
+            @Override public void write(final ByteBuffer[] batch, final int offset, final int length, final SocketAddress address) {
+                for (int i = offset; i < offset + length; i++) {
+                    write(batch[i], address);
+                }
+            }
+            @Override public void flush() {}
+            @Override public boolean hasPending() {
+                return false;
+            }
+            @Override public int getMaxPacketSizeBytes() {
+                return 32;
+            }
+            @Override public boolean supportsBatching() {
+                return false;
+            }
+            @Override public void close() {
+                closed.countDown();
+            }
+        };
+        final NonBlockingStatsDClient in_process_client = NonBlockingStatsDClient.builder()
+                .withPrefix("my.prefix")
+                .withHostname("localhost")
+                .withPort(STATSD_SERVER_PORT)
+                .withTransport(transport)
+                .build();
+        try {
+            in_process_client.gauge("mygauge", 1);
+            in_process_client.gauge("mygauge", 2);
+
+            // packets are split at the maximum size of the transport
+            assertEquals("my.prefix.mygauge:1|g", packets.poll(1, TimeUnit.SECONDS));
+            assertEquals("my.prefix.mygauge:2|g", packets.poll(1, TimeUnit.SECONDS));
+        } finally {
+            in_process_client.stop();
+        }
+        assertTrue(closed.await(1, TimeUnit.SECONDS));
+        assertTrue(server.messagesReceived().isEmpty());
+    }
+
+    @Test(timeout = 5000L)
+    public void resolves_address_in_background() throws Exception {
+        final Callable<SocketAddress> lookup = NonBlockingStatsDClient.refreshingAddressResolution("localhost", STATSD_SERVER_PORT, 1000);
+        assertFalse(((InetSocketAddress) lookup.call()).isUnresolved());
+        assertEquals(STATSD_SERVER_PORT, ((InetSocketAddress) lookup.call()).getPort());
+        ((Closeable) lookup).close();
+
+        final NonBlockingStatsDClient refreshing_client = NonBlockingStatsDClient.builder()
+                .withPrefix("my.prefix")
+                .withHostname("localhost")
+                .withPort(STATSD_SERVER_PORT)
+                .withAddressResolutionTtl(1000)
+                .build();
+        try {
+            refreshing_client.gauge("mygauge", 1);
+            server.waitForMessage();
+
+            assertThat(server.messagesReceived(), contains("my.prefix.mygauge:1|g"));
+        } finally {
+            refreshing_client.stop();
+        }
+    }
+
+    @Test(timeout = 5000L)
+    public void resolves_first_address_in_background() throws Exception {
+        final Callable<SocketAddress> lookup = NonBlockingStatsDClient.refreshingAddressResolution("unknown.invalid", STATSD_SERVER_PORT, 1000);
+        try {
+            lookup.call();
+            fail("unresolvable host name was looked up");
+        } catch (final UnknownHostException e) {
+            // expected, only once the first resolution completed
+        } finally {
+            ((Closeable) lookup).close();
+        }
+    }
+
+    @Test(timeout = 5000L)
+    public void closes_address_lookup_given_on_stop() throws Exception {
+        final Callable<SocketAddress> lookup = NonBlockingStatsDClient.refreshingAddressResolution("localhost", STATSD_SERVER_PORT, 1000);
+        final NonBlockingStatsDClient lookup_client = NonBlockingStatsDClient.builder()
+                .withPrefix("my.prefix")
+                .withAddressLookup(lookup)
+                .build();
+        try {
+            lookup_client.gauge("mygauge", 1);
+            server.waitForMessage();
+
+            assertThat(server.messagesReceived(), contains("my.prefix.mygauge:1|g"));
+            assertFalse(((RefreshingAddressResolution) lookup).isClosed());
+        } finally {
+            lookup_client.stop();
+        }
+        assertTrue(((RefreshingAddressResolution) lookup).isClosed());
+    }
+
+    @Test(timeout = 5000L)
+    public void sends_from_direct_buffer() throws Exception {
+        final NonBlockingStatsDClient direct_client = NonBlockingStatsDClient.builder()
+                .withPrefix("my.prefix")
+                .withHostname("localhost")
+                .withPort(STATSD_SERVER_PORT)
+                .withDirectBuffer(true)
+                .build();
+        try {
+            direct_client.gauge("mygauge", 1);
+            server.waitForMessage();
+
+            assertThat(server.messagesReceived(), contains("my.prefix.mygauge:1|g"));
+        } finally {
+            direct_client.stop();
+        }
+    }
+
     @Test(timeout = 5000L)
     public void sends_event() throws Exception {
 
@@ -748,4 +1281,745 @@ public class NonBlockingStatsDClientTest {
             return super.poll(timeout, unit);
         }
     }
+
+    @Test(timeout = 5000L)
+    public void probes_packet_size_from_interface_mtu() throws Exception {
+        final InetSocketAddress address = new InetSocketAddress("127.0.0.1", STATSD_SERVER_PORT);
+
+        final int packetSizeBytes = PacketSizeProbe.probe(address, null, 8192);
+        assertTrue(packetSizeBytes > 0 && packetSizeBytes <= 8192);
+        assertEquals(100, PacketSizeProbe.probe(address, null, 100));
+    }
+
+    @Test(timeout = 5000L)
+    public void sends_with_probed_packet_size() throws Exception {
+        final NonBlockingStatsDClient probing_client = NonBlockingStatsDClient.builder()
+                .withPrefix("my.prefix")
+                .withHostname("localhost")
+                .withPort(STATSD_SERVER_PORT)
+                .withPacketSizeProbe(true)
+                .build();
+        try {
+            probing_client.gauge("mygauge", 1);
+            server.waitForMessage();
+
+            assertThat(server.messagesReceived(), contains("my.prefix.mygauge:1|g"));
+        } finally {
+            probing_client.stop();
+        }
+    }
+
+    @Test(timeout = 5000L)
+    public void applies_udp_socket_options() throws Exception {
+        final DatagramChannel channel = DatagramChannel.open();
+        try {
+            new UdpOptions(64 * 1024, 0xb8, true).apply(channel);
+
+            assertTrue(channel.getOption(StandardSocketOptions.SO_SNDBUF) >= 64 * 1024);
+            assertEquals(0xb8, (int) channel.getOption(StandardSocketOptions.IP_TOS));
+            assertFalse(channel.isBlocking());
+        } finally {
+            channel.close();
+        }
+    }
+
+    @Test(timeout = 5000L)
+    public void counts_messages_dropped_from_full_queue() throws Exception {
+        final DatagramChannel channel = DatagramChannel.open();
+        final StatsDSender sender = new StatsDSender(NonBlockingStatsDClient.staticAddressResolution("localhost", STATSD_SERVER_PORT),
+                1, new StatsDClientErrorHandler() {
+                    @Override public void handle(final Exception exception) {}
+                }, channel, 1400);
+        try {
+            sender.send("my.prefix.mycount:1|c");
+            sender.send("my.prefix.mycount:2|c");
+            sender.send("my.prefix.mycount:3|c");
+
+            assertEquals(2, sender.getDroppedMessageCount());
+            assertEquals(0, sender.getFailedSendCount());
+        } finally {
+            channel.close();
+        }
+    }
+
+    @Test(timeout = 5000L)
+    public void counts_failed_sends_apart_from_dropped_messages() throws Exception {
+        final BlockingQueue<Exception> errors = new LinkedBlockingQueue<Exception>();
+        final NonBlockingStatsDClient failing_client = NonBlockingStatsDClient.builder()
+                .withPrefix("my.prefix")
+                .withHostname("localhost")
+                .withPort(STATSD_SERVER_PORT)
+                .withErrorHandler(new StatsDClientErrorHandler() {
+                    @Override public void handle(final Exception exception) {
+                        errors.add(exception);
+                    }
+                })
+                .withTransport(new Transport() {
+                    @Override public void write(final ByteBuffer packet, final SocketAddress address) throws IOException {
+                        throw new IOException("Network unreachable");
+                    }
+                    @Override public void write(final ByteBuffer[] packets, final int offset, final int length, final SocketAddress address) throws IOException {
+                        throw new IOException("Network unreachable");
+                    }
+                    @Override public void flush() {}
+                    @Override public boolean hasPending() {
+                        return false;
+                    }
+                    @Override public int getMaxPacketSizeBytes() {
+                        return 0;
+                    }
+                    @Override public boolean supportsBatching() {
+                        return false;
+                    }
+                    @Override public void close() {}
+                })
+                .build();
+        try {
+            failing_client.gauge("mygauge", 1);
+
+            assertEquals("Network unreachable", errors.poll(1, TimeUnit.SECONDS).getMessage());
+            assertEquals(1, failing_client.getFailedSendCount());
+            assertEquals(0, failing_client.getDroppedMessageCount());
+        } finally {
+            failing_client.stop();
+        }
+    }
+
+    @Test(timeout = 5000L)
+    public void fans_out_packets_without_waiting_for_slow_endpoint() throws Exception {
+        final CountDownLatch stalled = new CountDownLatch(1);
+        final BlockingQueue<String> received = new LinkedBlockingQueue<String>();
+        final BlockingQueue<Exception> errors = new LinkedBlockingQueue<Exception>();
+        final FanOutTransport transport = new FanOutTransport(2, null);
+        transport.addEndpoint(new RecordingTransport(new LinkedBlockingQueue<String>()) {
+            @Override public void write(final ByteBuffer packet, final SocketAddress address) {
+                try {
+                    stalled.await();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, NonBlockingStatsDClient.volatileAddressResolution("localhost", STATSD_SERVER_PORT));
+        transport.addEndpoint(new RecordingTransport(received),
+                NonBlockingStatsDClient.volatileAddressResolution("localhost", STATSD_SERVER_PORT + 1));
+        final NonBlockingStatsDClient fan_out_client = NonBlockingStatsDClient.builder()
+                .withPrefix("my.prefix")
+                .withHostname("localhost")
+                .withPort(STATSD_SERVER_PORT)
+                .withTransport(transport)
+                .withErrorHandler(new StatsDClientErrorHandler() {
+                    @Override public void handle(final Exception exception) {
+                        errors.add(exception);
+                    }
+                })
+                .build();
+        try {
+            // the fast endpoint keeps receiving while the queue of the slow one overflows
+            for (int i = 0; i < 10; i++) {
+                fan_out_client.gauge("mygauge", i);
+                assertEquals("my.prefix.mygauge:" + i + "|g", received.poll(1, TimeUnit.SECONDS));
+            }
+            boolean queueFull = false;
+            Exception error;
+            while (!queueFull && (error = errors.poll(1, TimeUnit.SECONDS)) != null) {
+                queueFull = error.getMessage().contains("to endpoint 0: queue full");
+            }
+            assertTrue(queueFull);
+            assertTrue(fan_out_client.getFailedSendCount() > 0);
+        } finally {
+            stalled.countDown();
+            fan_out_client.stop();
+        }
+    }
+
+    @Test(timeout = 5000L)
+    public void flushes_fan_out_once_endpoints_sent() throws Exception {
+        final BlockingQueue<String> received = new LinkedBlockingQueue<String>();
+        final FanOutTransport transport = new FanOutTransport(16, null);
+        transport.addEndpoint(new RecordingTransport(received) {
+            @Override public void write(final ByteBuffer packet, final SocketAddress address) throws IOException {
+                try {
+                    Thread.sleep(20L);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.write(packet, address);
+            }
+        }, NonBlockingStatsDClient.volatileAddressResolution("localhost", STATSD_SERVER_PORT));
+        transport.addEndpoint(new RecordingTransport(new LinkedBlockingQueue<String>()) {
+            @Override public void write(final ByteBuffer packet, final SocketAddress address) throws IOException {
+                if (StandardCharsets.UTF_8.decode(packet.duplicate()).toString().endsWith(":2|c")) {
+                    throw new IOException("Network unreachable");
+                }
+                super.write(packet, address);
+            }
+        }, NonBlockingStatsDClient.volatileAddressResolution("localhost", STATSD_SERVER_PORT + 1));
+        final NonBlockingStatsDClient fan_out_client = NonBlockingStatsDClient.builder()
+                .withPrefix("my.prefix")
+                .withHostname("localhost")
+                .withPort(STATSD_SERVER_PORT)
+                .withTransport(transport)
+                .build();
+        try {
+            fan_out_client.count("mycount", 1);
+            assertTrue(fan_out_client.flush(1, TimeUnit.SECONDS));
+            assertEquals("my.prefix.mycount:1|c", received.poll());
+            assertFalse(transport.hasPending());
+
+            // the failed write to the second endpoint fails the next flush
+            fan_out_client.count("mycount", 2);
+            assertFalse(fan_out_client.flush(1, TimeUnit.SECONDS));
+            assertEquals("my.prefix.mycount:2|c", received.poll());
+            assertEquals(1, fan_out_client.getFailedSendCount());
+        } finally {
+            fan_out_client.stop();
+        }
+    }
+
+    @Test(timeout = 5000L)
+    public void shards_contexts_by_name_and_tags() throws Exception {
+        final ShardingTransport transport = new ShardingTransport(1400);
+        for (int i = 1; i <= 3; i++) {
+            transport.addShard("agent-" + i, new RecordingTransport(new LinkedBlockingQueue<String>()),
+                    NonBlockingStatsDClient.volatileAddressResolution("localhost", STATSD_SERVER_PORT + i));
+        }
+
+        // the value, type and sample rate do not change the context
+        assertEquals(transport.shardOf("my.prefix.mycount:1|c|#env:prod"), transport.shardOf("my.prefix.mycount:7|c|@0.5|#env:prod"));
+        int tagsMoved = 0;
+        for (int i = 0; i < 100; i++) {
+            if (!transport.shardOf("my.prefix.mycount:1|c|#id:" + i).equals(transport.shardOf("my.prefix.mycount:1|c"))) {
+                tagsMoved++;
+            }
+        }
+        assertTrue(tagsMoved > 0);
+    }
+
+    @Test(timeout = 5000L)
+    public void moves_only_contexts_of_added_shard() throws Exception {
+        final ShardingTransport transport = new ShardingTransport(1400);
+        for (int i = 1; i <= 3; i++) {
+            transport.addShard("agent-" + i, new RecordingTransport(new LinkedBlockingQueue<String>()),
+                    NonBlockingStatsDClient.volatileAddressResolution("localhost", STATSD_SERVER_PORT + i));
+        }
+        final String[] before = new String[1000];
+        for (int i = 0; i < before.length; i++) {
+            before[i] = transport.shardOf("my.prefix.context" + i + ":1|c");
+        }
+
+        transport.addShard("agent-4", new RecordingTransport(new LinkedBlockingQueue<String>()),
+                NonBlockingStatsDClient.volatileAddressResolution("localhost", STATSD_SERVER_PORT + 4));
+        int moved = 0;
+        for (int i = 0; i < before.length; i++) {
+            final String after = transport.shardOf("my.prefix.context" + i + ":1|c");
+            if (!after.equals(before[i])) {
+                assertEquals("agent-4", after);
+                moved++;
+            }
+        }
+        // a quarter of the contexts on average
+        assertTrue(moved > 150 && moved < 350);
+
+        transport.removeShard("agent-4");
+        for (int i = 0; i < before.length; i++) {
+            assertEquals(before[i], transport.shardOf("my.prefix.context" + i + ":1|c"));
+        }
+    }
+
+    @Test(timeout = 5000L)
+    public void packs_packets_per_shard() throws Exception {
+        final ShardingTransport transport = new ShardingTransport(1400);
+        final BlockingQueue<String> first = new LinkedBlockingQueue<String>();
+        final BlockingQueue<String> second = new LinkedBlockingQueue<String>();
+        transport.addShard("agent-1", new RecordingTransport(first),
+                NonBlockingStatsDClient.volatileAddressResolution("localhost", STATSD_SERVER_PORT + 1));
+        transport.addShard("agent-2", new RecordingTransport(second),
+                NonBlockingStatsDClient.volatileAddressResolution("localhost", STATSD_SERVER_PORT + 2));
+        final StringBuilder expectedFirst = new StringBuilder();
+        final StringBuilder expectedSecond = new StringBuilder();
+        final StringBuilder packet = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            final String message = "my.prefix.context" + i + ":1|c";
+            final StringBuilder expected = transport.shardOf(message).equals("agent-1") ? expectedFirst : expectedSecond;
+            expected.append(expected.length() > 0 ? "\n" : "").append(message);
+            packet.append(packet.length() > 0 ? "\n" : "").append(message);
+        }
+
+        transport.write(ByteBuffer.wrap(packet.toString().getBytes(StandardCharsets.UTF_8)), null);
+        assertTrue(first.isEmpty() && second.isEmpty());
+        transport.flush();
+
+        assertEquals(expectedFirst.toString(), first.poll());
+        assertEquals(expectedSecond.toString(), second.poll());
+    }
+
+    @Test(timeout = 5000L)
+    public void drops_oldest_spooled_packets_when_spool_is_full() throws Exception {
+        final BlockingQueue<String> received = new LinkedBlockingQueue<String>();
+        final AtomicBoolean down = new AtomicBoolean(true);
+        final BlockingQueue<Exception> errors = new LinkedBlockingQueue<Exception>();
+        final File spoolFile = File.createTempFile("statsd", ".spool");
+        final SpoolingTransport transport = new SpoolingTransport(new RecordingTransport(received) {
+            @Override public void write(final ByteBuffer packet, final SocketAddress address) throws IOException {
+                if (down.get()) {
+                    throw new IOException("Connection refused");
+                }
+                super.write(packet, address);
+            }
+        }, spoolFile, 256, 100000, new StatsDClientErrorHandler() {
+            @Override public void handle(final Exception exception) {
+                errors.add(exception);
+            }
+        });
+        try {
+            // 24 bytes records, of which 10 fit in the spool
+            for (int i = 10; i < 40; i++) {
+                try {
+                    transport.write(ByteBuffer.wrap(("my.prefix.gauge:" + i + "|g").getBytes(StandardCharsets.UTF_8)), null);
+                } catch (final IOException e) {
+                    assertEquals(10, i);
+                }
+            }
+            assertEquals(10, transport.getSpooledPacketCount());
+            assertThat(errors.poll().getMessage(), containsString("Spool full"));
+
+            down.set(false);
+            while (transport.getSpooledPacketCount() > 0) {
+                transport.flush();
+                Thread.sleep(1);
+            }
+
+            for (int i = 30; i < 40; i++) {
+                assertEquals("my.prefix.gauge:" + i + "|g", received.poll());
+            }
+            assertEquals("Dropped 20 packets to null: spool full", errors.poll().getMessage());
+        } finally {
+            transport.close();
+        }
+        assertFalse(spoolFile.exists());
+    }
+
+    @Test(timeout = 5000L)
+    public void sends_new_packets_directly_while_replaying_spool() throws Exception {
+        final BlockingQueue<String> received = new LinkedBlockingQueue<String>();
+        final AtomicBoolean down = new AtomicBoolean(true);
+        final File spoolFile = File.createTempFile("statsd", ".spool");
+        final SpoolingTransport transport = new SpoolingTransport(new RecordingTransport(received) {
+            @Override public void write(final ByteBuffer packet, final SocketAddress address) throws IOException {
+                if (down.get()) {
+                    throw new IOException("Connection refused");
+                }
+                super.write(packet, address);
+            }
+        }, spoolFile, 1024, 1, null);
+        try {
+            for (int i = 0; i < 3; i++) {
+                try {
+                    transport.write(ByteBuffer.wrap(("my.prefix.spooled:" + i + "|g").getBytes(StandardCharsets.UTF_8)), null);
+                } catch (final IOException e) {
+                    assertEquals(0, i);
+                }
+            }
+            assertEquals(3, transport.getSpooledPacketCount());
+
+            down.set(false);
+            while (received.isEmpty()) {
+                transport.flush();
+                Thread.sleep(10);
+            }
+            transport.write(ByteBuffer.wrap("my.prefix.live:1|g".getBytes(StandardCharsets.UTF_8)), null);
+
+            assertEquals("my.prefix.spooled:0|g", received.poll());
+            assertEquals("my.prefix.live:1|g", received.poll());
+            assertEquals(2, transport.getSpooledPacketCount());
+        } finally {
+            transport.close();
+        }
+    }
+
+    @Test(timeout = 5000L)
+    public void fails_flushes_while_packets_are_spooled() throws Exception {
+        final BlockingQueue<String> received = new LinkedBlockingQueue<String>();
+        final AtomicBoolean down = new AtomicBoolean(true);
+        final File spoolFile = File.createTempFile("statsd", ".spool");
+        final NonBlockingStatsDClient spooling_client = NonBlockingStatsDClient.builder()
+                .withPrefix("my.prefix")
+                .withHostname("localhost")
+                .withPort(STATSD_SERVER_PORT)
+                .withSpoolFile(spoolFile)
+                .withSpoolSize(64 * 1024)
+                .withTransport(new RecordingTransport(received) {
+                    @Override public void write(final ByteBuffer packet, final SocketAddress address) throws IOException {
+                        if (down.get()) {
+                            throw new IOException("Connection refused");
+                        }
+                        super.write(packet, address);
+                    }
+                })
+                .build();
+        try {
+            spooling_client.gauge("mygauge", 1);
+            assertFalse(spooling_client.flush(1, TimeUnit.SECONDS));
+
+            // spooled without failing, but not sent either
+            spooling_client.gauge("mygauge", 2);
+            assertFalse(spooling_client.flush(1, TimeUnit.SECONDS));
+
+            down.set(false);
+            while (!spooling_client.flush(1, TimeUnit.SECONDS)) {
+                Thread.sleep(50L);
+            }
+            assertEquals("my.prefix.mygauge:1|g", received.poll());
+            assertEquals("my.prefix.mygauge:2|g", received.poll());
+        } finally {
+            spooling_client.stop();
+        }
+        assertFalse(spoolFile.exists());
+    }
+
+    @Test(timeout = 5000L)
+    public void suspends_sends_after_consecutive_failures() throws Exception {
+        final BlockingQueue<String> received = new LinkedBlockingQueue<String>();
+        final AtomicBoolean down = new AtomicBoolean(true);
+        final AtomicInteger attempts = new AtomicInteger();
+        final BlockingQueue<Exception> errors = new LinkedBlockingQueue<Exception>();
+        final NonBlockingStatsDClient breaking_client = NonBlockingStatsDClient.builder()
+                .withPrefix("my.prefix")
+                .withHostname("localhost")
+                .withPort(STATSD_SERVER_PORT)
+                .withErrorHandler(new StatsDClientErrorHandler() {
+                    @Override public void handle(final Exception exception) {
+                        errors.add(exception);
+                    }
+                })
+                .withCircuitBreaker(3)
+                .withTransport(new RecordingTransport(received) {
+                    @Override public void write(final ByteBuffer packet, final SocketAddress address) throws IOException {
+                        attempts.incrementAndGet();
+                        if (down.get()) {
+                            throw new IOException("Connection refused");
+                        }
+                        super.write(packet, address);
+                    }
+                })
+                .build();
+        try {
+            for (int i = 0; i < 10; i++) {
+                breaking_client.gauge("mygauge", i);
+            }
+            Exception error;
+            while (!(error = errors.take()).getMessage().startsWith("Suspending")) {
+                assertEquals("Connection refused", error.getMessage());
+            }
+            assertEquals("Suspending sends after 3 consecutive failures, retrying in 100 ms", error.getMessage());
+            final long dropped = breaking_client.getDroppedMessageCount();
+            breaking_client.gauge("mygauge", 10);
+            breaking_client.recordEvent(Event.builder().withTitle("title1").withText("text1").build());
+            breaking_client.serviceCheck(ServiceCheck.builder().withName("my_check.name")
+                    .withStatus(ServiceCheck.Status.WARNING).build());
+            assertEquals(3, attempts.get());
+            // events and service checks are skipped like metrics, before they are formatted
+            assertEquals(dropped + 3, breaking_client.getDroppedMessageCount());
+
+            // the next attempt after the backoff closes the circuit
+            down.set(false);
+            Thread.sleep(150);
+            breaking_client.gauge("mygauge", 11);
+            assertEquals("my.prefix.mygauge:11|g", received.poll(1, TimeUnit.SECONDS));
+            breaking_client.gauge("mygauge", 12);
+            assertEquals("my.prefix.mygauge:12|g", received.poll(1, TimeUnit.SECONDS));
+            assertEquals(5, attempts.get());
+        } finally {
+            breaking_client.stop();
+        }
+    }
+
+    @Test(timeout = 5000L)
+    public void starts_on_first_metric_when_lazy() throws Exception {
+        final AtomicInteger lookups = new AtomicInteger();
+        final NonBlockingStatsDClient lazy_client = NonBlockingStatsDClient.builder()
+                .withPrefix("my.prefix")
+                .withAddressLookup(new Callable<SocketAddress>() {
+                    @Override public SocketAddress call() {
+                        lookups.incrementAndGet();
+                        return new InetSocketAddress("localhost", STATSD_SERVER_PORT);
+                    }
+                })
+                .withLazyStart(true)
+                .build();
+        try {
+            assertEquals(0, lookups.get());
+            assertEquals(0, lazy_client.getDroppedMessageCount());
+
+            lazy_client.gauge("mygauge", 423);
+            server.waitForMessage();
+
+            assertThat(server.messagesReceived(), contains("my.prefix.mygauge:423|g"));
+            assertTrue(lookups.get() > 0);
+        } finally {
+            lazy_client.stop();
+        }
+    }
+
+    @Test(timeout = 5000L)
+    public void starts_once_when_first_metrics_race() throws Exception {
+        final BlockingQueue<String> received = new LinkedBlockingQueue<String>();
+        final AtomicInteger starts = new AtomicInteger();
+        final NonBlockingStatsDClient lazy_client = new NonBlockingStatsDClient(NonBlockingStatsDClient.builder()
+                .withPrefix("my.prefix")
+                .withHostname("localhost")
+                .withPort(STATSD_SERVER_PORT)
+                .withTransport(new RecordingTransport(received))
+                .withLazyStart(true)) {
+            @Override protected StatsDSender createSender(final Callable<SocketAddress> addressLookup, final int queueSize,
+                                                          final StatsDClientErrorHandler handler, final Transport transport,
+                                                          final int maxPacketSizeBytes) {
+                starts.incrementAndGet();
+                return super.createSender(addressLookup, queueSize, handler, transport, maxPacketSizeBytes);
+            }
+        };
+        final CountDownLatch go = new CountDownLatch(1);
+        final Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final int thread = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override public void run() {
+                    try {
+                        go.await();
+                    } catch (final InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < 10; i++) {
+                        lazy_client.gauge("mygauge", thread * 10 + i);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        try {
+            go.countDown();
+            for (final Thread thread : threads) {
+                thread.join();
+            }
+            final Set<String> messages = new HashSet<String>();
+            for (int i = 0; i < 80; i++) {
+                messages.add(received.take());
+            }
+            for (int i = 0; i < 80; i++) {
+                assertTrue(messages.contains("my.prefix.mygauge:" + i + "|g"));
+            }
+            assertEquals(1, starts.get());
+            assertEquals(0, lazy_client.getDroppedMessageCount());
+        } finally {
+            lazy_client.stop();
+        }
+    }
+
+    @Test(timeout = 5000L)
+    public void stops_idle_client_at_once() throws Exception {
+        final NonBlockingStatsDClient idle_client = new NonBlockingStatsDClient("my.prefix", "localhost", STATSD_SERVER_PORT);
+        idle_client.gauge("mygauge", 423);
+        server.waitForMessage();
+
+        final long start = System.nanoTime();
+        final ShutdownReport report = idle_client.stop(10, TimeUnit.SECONDS);
+
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 500);
+        assertEquals(0, report.getFlushedMessageCount());
+        assertEquals(0, report.getAbandonedMessageCount());
+    }
+
+    @Test(timeout = 5000L)
+    public void abandons_messages_left_at_drain_deadline() throws Exception {
+        final BlockingQueue<String> received = new LinkedBlockingQueue<String>();
+        final NonBlockingStatsDClient backed_up_client = NonBlockingStatsDClient.builder()
+                .withPrefix("my.prefix")
+                .withHostname("localhost")
+                .withPort(STATSD_SERVER_PORT)
+                .withTransport(new RecordingTransport(received) {
+                    @Override public void write(final ByteBuffer packet, final SocketAddress address) throws IOException {
+                        try {
+                            Thread.sleep(20);
+                        } catch (final InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        super.write(packet, address);
+                    }
+                })
+                .build();
+        for (int i = 0; i < 50; i++) {
+            backed_up_client.gauge("mygauge", i);
+        }
+
+        final long start = System.nanoTime();
+        final ShutdownReport report = backed_up_client.stop(200, TimeUnit.MILLISECONDS);
+
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+        assertTrue(report.getFlushedMessageCount() > 0);
+        assertTrue(report.getAbandonedMessageCount() > 0);
+        assertEquals(50, received.size() + report.getAbandonedMessageCount());
+    }
+
+    @Test(timeout = 5000L)
+    public void counts_failed_writes_while_stopping_as_abandoned() throws Exception {
+        final NonBlockingStatsDClient failing_client = NonBlockingStatsDClient.builder()
+                .withPrefix("my.prefix")
+                .withHostname("localhost")
+                .withPort(STATSD_SERVER_PORT)
+                .withTransport(new RecordingTransport(new LinkedBlockingQueue<String>()) {
+                    @Override public void write(final ByteBuffer packet, final SocketAddress address) throws IOException {
+                        try {
+                            Thread.sleep(50);
+                        } catch (final InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        throw new IOException("Connection refused");
+                    }
+                })
+                .build();
+        for (int i = 0; i < 5; i++) {
+            failing_client.gauge("mygauge", i);
+        }
+
+        final ShutdownReport report = failing_client.stop(1, TimeUnit.SECONDS);
+
+        assertEquals(0, report.getFlushedMessageCount());
+        assertTrue(report.getAbandonedMessageCount() > 0);
+    }
+
+    @Test(timeout = 5000L)
+    public void flush_waits_for_messages_and_aggregates_to_be_written() throws Exception {
+        final BlockingQueue<String> received = new LinkedBlockingQueue<String>();
+        final NonBlockingStatsDClient flushing_client = NonBlockingStatsDClient.builder()
+                .withPrefix("my.prefix")
+                .withHostname("localhost")
+                .withPort(STATSD_SERVER_PORT)
+                .withAggregationFlushInterval(60000)
+                .withTransport(new RecordingTransport(received) {
+                    @Override public void write(final ByteBuffer packet, final SocketAddress address) throws IOException {
+                        try {
+                            Thread.sleep(10);
+                        } catch (final InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        super.write(packet, address);
+                    }
+                })
+                .build();
+        try {
+            flushing_client.monotonicCount("mycount", 100);
+            flushing_client.monotonicCount("mycount", 110);
+            for (int i = 0; i < 5; i++) {
+                flushing_client.gauge("mygauge", i);
+            }
+
+            assertTrue(flushing_client.flush(2, TimeUnit.SECONDS));
+
+            assertThat(received, contains("my.prefix.mygauge:0|g", "my.prefix.mygauge:1|g", "my.prefix.mygauge:2|g",
+                    "my.prefix.mygauge:3|g", "my.prefix.mygauge:4|g", "my.prefix.mycount:10|c"));
+        } finally {
+            flushing_client.stop();
+        }
+    }
+
+    @Test(timeout = 5000L)
+    public void flush_async_completes_once_preceding_messages_are_written() throws Exception {
+        final BlockingQueue<String> received = new LinkedBlockingQueue<String>();
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final NonBlockingStatsDClient flushing_client = NonBlockingStatsDClient.builder()
+                .withPrefix("my.prefix")
+                .withHostname("localhost")
+                .withPort(STATSD_SERVER_PORT)
+                .withTransport(new RecordingTransport(received) {
+                    @Override public void write(final ByteBuffer packet, final SocketAddress address) throws IOException {
+                        try {
+                            blocked.await();
+                        } catch (final InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        super.write(packet, address);
+                    }
+                })
+                .build();
+        try {
+            flushing_client.gauge("mygauge", 1);
+            final Future<Void> flushed = flushing_client.flushAsync();
+            flushing_client.gauge("mygauge", 2);
+
+            assertFalse(flushing_client.flush(100, TimeUnit.MILLISECONDS));
+            assertFalse(flushed.isDone());
+
+            blocked.countDown();
+            flushed.get(1, TimeUnit.SECONDS);
+            assertEquals("my.prefix.mygauge:1|g", received.poll());
+        } finally {
+            flushing_client.stop();
+        }
+        assertTrue(flushing_client.flush(0, TimeUnit.MILLISECONDS));
+    }
+
+    @Test(timeout = 5000L)
+    public void flush_fails_when_preceding_messages_could_not_be_sent() throws Exception {
+        final BlockingQueue<String> received = new LinkedBlockingQueue<String>();
+        final AtomicBoolean down = new AtomicBoolean(true);
+        final NonBlockingStatsDClient flushing_client = NonBlockingStatsDClient.builder()
+                .withPrefix("my.prefix")
+                .withHostname("localhost")
+                .withPort(STATSD_SERVER_PORT)
+                .withTransport(new RecordingTransport(received) {
+                    @Override public void write(final ByteBuffer packet, final SocketAddress address) throws IOException {
+                        if (down.get()) {
+                            throw new IOException("Connection refused");
+                        }
+                        super.write(packet, address);
+                    }
+                })
+                .build();
+        try {
+            flushing_client.gauge("mygauge", 1);
+            try {
+                flushing_client.flushAsync().get(1, TimeUnit.SECONDS);
+                fail("flushed despite the failed send");
+            } catch (final ExecutionException e) {
+                assertThat(e.getCause().getMessage(), containsString("1 failed sends"));
+            }
+
+            // only the failures since the previous flush count
+            down.set(false);
+            flushing_client.gauge("mygauge", 2);
+            assertTrue(flushing_client.flush(1, TimeUnit.SECONDS));
+            assertEquals("my.prefix.mygauge:2|g", received.poll());
+        } finally {
+            flushing_client.stop();
+        }
+    }
+
+    private static class RecordingTransport implements Transport {
+        private final BlockingQueue<String> packets;
+
+        RecordingTransport(final BlockingQueue<String> packets) {
+            this.packets = packets;
+        }
+
+        @Override public void write(final ByteBuffer packet, final SocketAddress address) throws IOException {
+            packets.add(StandardCharsets.UTF_8.decode(packet).toString());
+        }
+        @Override public void write(final ByteBuffer[] batch, final int offset, final int length, final SocketAddress address) throws IOException {
+            for (int i = offset; i < offset + length; i++) {
+                write(batch[i], address);
+            }
+        }
+        @Override public void flush() {}
+        @Override public boolean hasPending() {
+            return false;
+        }
+        @Override public int getMaxPacketSizeBytes() {
+            // one message per packet
+            return 32;
+        }
+        @Override public boolean supportsBatching() {
+            return false;
+        }
+        @Override public void close() {}
+    }
 }
@@ -0,0 +1,43 @@
+package com.timgroup.statsd;
+
+import java.io.IOException;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+
+/**
+ * Starts a client and sends a single metric, as a command line tool would. Also meant to be run
+ * from a GraalVM native image built with the metadata shipped in the jar, where it checks that no
+ * reflection or native library is missing.
+ */
+public final class StartupSmokeTest {
+
+    private static final int STATSD_SERVER_PORT = 17257;
+    private static DummyStatsDServer server;
+
+    @BeforeClass
+    public static void start() throws IOException {
+        server = new DummyStatsDServer(STATSD_SERVER_PORT);
+    }
+
+    @AfterClass
+    public static void stop() throws Exception {
+        server.close();
+    }
+
+    @Test(timeout = 5000L)
+    public void sends_first_metric_after_start() throws Exception {
+        final NonBlockingStatsDClient client = new NonBlockingStatsDClient("my.prefix", "localhost", STATSD_SERVER_PORT);
+        try {
+            client.gauge("mygauge", 1.5);
+            server.waitForMessage();
+
+            assertThat(server.messagesReceived(), contains("my.prefix.mygauge:1.5|g"));
+        } finally {
+            client.stop();
+        }
+    }
+}
@@ -7,12 +7,21 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 import java.io.IOException;
 import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import jnr.unixsocket.UnixServerSocketChannel;
+import jnr.unixsocket.UnixSocketAddress;
+import jnr.unixsocket.UnixSocketChannel;
+import jnr.unixsocket.UnixSocketOptions;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.Matchers.nullValue;
 import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.hasItem;
 
 public class UnixSocketTest implements StatsDClientErrorHandler {
@@ -60,6 +69,31 @@ public class UnixSocketTest implements StatsDClientErrorHandler {
         assertThat(lastException.getMessage(), nullValue());
     }
 
+    @Test(timeout = 5000L)
+    public void reopens_channel_after_terminal_errors_only() throws Exception {
+        final DatagramTransport transport = DatagramTransport.unix(100, 0);
+        try {
+            final UnixSocketAddress address = new UnixSocketAddress(socketFile);
+            try {
+                transport.write(ByteBuffer.allocate(1024 * 1024), address);
+            } catch (final IOException e) {
+                // message too long
+                assertThat(transport.isReopenable(e), equalTo(false));
+            }
+            socketFile.delete();
+            try {
+                transport.write(ByteBuffer.wrap("my.prefix.mycount:1|c".getBytes(StandardCharsets.UTF_8)), address);
+            } catch (final IOException e) {
+                assertThat(transport.isReopenable(e), equalTo(true));
+                assertThat(transport.isReopenable(new IOException(e.getMessage())), equalTo(false));
+                return;
+            }
+            throw new AssertionError("sent to a deleted socket");
+        } finally {
+            transport.close();
+        }
+    }
+
     @Test(timeout = 10000L)
     public void resist_dsd_restart() throws Exception {
         client.gauge("mycount", 10);
@@ -89,10 +123,13 @@ public class UnixSocketTest implements StatsDClientErrorHandler {
         lastException = new Exception();
         DummyStatsDServer server2 = new DummyStatsDServer(socketFile.toString());
 
-        client.gauge("mycount", 30);
-        server2.waitForMessage();
+        // The channel is opened again after a backoff, and the packet that failed sent first
+        while (!server2.messagesReceived().contains("my.prefix.mycount:30|g")) {
+            client.gauge("mycount", 30);
+            Thread.sleep(10);
+        }
 
-        assertThat(server2.messagesReceived(), hasItem("my.prefix.mycount:30|g"));
+        assertThat(server2.messagesReceived(), hasItem("my.prefix.mycount:20|g"));
         server2.clear();
         assertThat(lastException.getMessage(), nullValue());
         server2.close();
@@ -125,4 +162,147 @@ public class UnixSocketTest implements StatsDClientErrorHandler {
         assertThat(server.messagesReceived(), hasItem("my.prefix.mycount:30|g"));
         server.clear();
     }
+
+    @Test(timeout = 10000L)
+    public void holds_packets_in_non_blocking_mode() throws Exception {
+        final NonBlockingStatsDClient nonBlockingClient = NonBlockingStatsDClient.builder()
+                .withPrefix("my.prefix")
+                .withHostname(socketFile.toString())
+                .withPort(0)
+                .withErrorHandler(this)
+                .withNonBlocking(true)
+                .withRetryBufferSize(4)
+                .withRetryMaxAge(10000)
+                .build();
+        try {
+            nonBlockingClient.gauge("mycount", 10);
+            server.waitForMessage();
+            assertThat(server.messagesReceived(), contains("my.prefix.mycount:10|g"));
+            server.clear();
+
+            // Freeze the server until the socket is full, then the retry buffer
+            server.freeze();
+            while (lastException.getMessage() == null) {
+                nonBlockingClient.gauge("mycount", 20);
+                Thread.sleep(1);
+            }
+            assertThat(lastException.getMessage(), containsString("retry buffer full"));
+
+            // The packets held are sent once the server resumes listening
+            server.unfreeze();
+            nonBlockingClient.gauge("mycount", 30);
+            while (!server.messagesReceived().contains("my.prefix.mycount:30|g")) {
+                Thread.sleep(10);
+            }
+            assertThat(server.messagesReceived(), hasItem("my.prefix.mycount:20|g"));
+        } finally {
+            nonBlockingClient.stop();
+        }
+    }
+
+    @Test(timeout = 10000L)
+    public void sends_length_prefixed_packets_in_stream_mode() throws Exception {
+        final File streamSocketFile = new File(tmpFolder, "stream.sock");
+        streamSocketFile.deleteOnExit();
+        final UnixServerSocketChannel streamServer = UnixServerSocketChannel.open();
+        streamServer.socket().bind(new UnixSocketAddress(streamSocketFile));
+
+        final NonBlockingStatsDClient streamClient = NonBlockingStatsDClient.builder()
+                .withPrefix("my.prefix")
+                .withHostname(streamSocketFile.toString())
+                .withPort(0)
+                .withErrorHandler(this)
+                .withUnixStream(true)
+                .build();
+        try {
+            streamClient.gauge("mycount", 10);
+            streamClient.gauge("mycount", 20);
+
+            final UnixSocketChannel connection = streamServer.accept();
+            final StringBuilder received = new StringBuilder();
+            final ByteBuffer header = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            while (received.indexOf("my.prefix.mycount:20|g") < 0) {
+                header.clear();
+                while (header.hasRemaining()) {
+                    connection.read(header);
+                }
+                final ByteBuffer payload = ByteBuffer.allocate(header.getInt(0));
+                while (payload.hasRemaining()) {
+                    connection.read(payload);
+                }
+                received.append(new String(payload.array(), StandardCharsets.UTF_8)).append('\n');
+            }
+            connection.close();
+
+            assertThat(received.toString(), equalTo("my.prefix.mycount:10|g\nmy.prefix.mycount:20|g\n"));
+        } finally {
+            streamClient.stop();
+            streamServer.close();
+        }
+    }
+
+    @Test(timeout = 5000L)
+    public void sends_packets_larger_than_udp_ones_by_default() throws Exception {
+        final StringBuilder tag = new StringBuilder("tag:");
+        while (tag.length() < 3000) {
+            tag.append("value");
+        }
+        client.gauge("mycount", 10, tag.toString());
+        server.waitForMessage();
+
+        assertThat(server.messagesReceived(), contains("my.prefix.mycount:10|g|#" + tag));
+        assertThat(lastException.getMessage(), nullValue());
+    }
+
+    @Test(timeout = 5000L)
+    public void probes_packet_size_from_send_buffer() throws Exception {
+        final DatagramChannel channel = DatagramTransport.unix(0, 4096).getChannel();
+        try {
+            final int sendBufferBytes = channel.getOption(UnixSocketOptions.SO_SNDBUF);
+            final UnixSocketAddress address = new UnixSocketAddress(socketFile);
+
+            assertThat(PacketSizeProbe.probe(address, channel, 1024 * 1024), equalTo(sendBufferBytes - 32));
+            assertThat(PacketSizeProbe.probe(address, channel, 1000), equalTo(1000));
+        } finally {
+            channel.close();
+        }
+    }
+
+    @Test(timeout = 10000L)
+    public void replays_spooled_packets_once_agent_is_back() throws Exception {
+        final File spoolFile = new File(tmpFolder, "statsd.spool");
+        final NonBlockingStatsDClient spoolingClient = NonBlockingStatsDClient.builder()
+                .withPrefix("my.prefix")
+                .withHostname(socketFile.toString())
+                .withPort(0)
+                .withErrorHandler(this)
+                .withSpoolFile(spoolFile)
+                .withSpoolSize(64 * 1024)
+                .build();
+        try {
+            spoolingClient.gauge("mycount", 10);
+            server.waitForMessage();
+            server.close();
+            socketFile.delete();
+
+            // Packets sent while the agent is down are spooled
+            for (int i = 0; i < 20; i++) {
+                spoolingClient.gauge("spooled", i);
+                Thread.sleep(10);
+            }
+            assertThat(lastException.getMessage(), containsString("spooling packets"));
+            assertThat(spoolFile.length(), equalTo(64 * 1024L));
+
+            server = new DummyStatsDServer(socketFile.toString());
+            while (!server.messagesReceived().contains("my.prefix.spooled:19|g")) {
+                Thread.sleep(10);
+            }
+            for (int i = 0; i < 20; i++) {
+                assertThat(server.messagesReceived(), hasItem("my.prefix.spooled:" + i + "|g"));
+            }
+        } finally {
+            spoolingClient.stop();
+        }
+        assertThat(spoolFile.exists(), equalTo(false));
+    }
 }